@@ -0,0 +1,66 @@
+#!/bin/bash
+set -eu -o pipefail
+
+# Builds an image derived from a neo4j image, with plugins installed and configuration rendered at build time.
+# When a container is started from the derived image with the same environment and no /conf or /plugins mount,
+# the entrypoint skips plugin installation and configuration merging.
+
+ROOT_DIR=$( cd -- "$( dirname -- "${BASH_SOURCE[0]}" )" &> /dev/null && pwd )
+BUILD_DIR=${ROOT_DIR}/build
+
+function usage
+{
+    echo >&2 "USAGE: $0 <neo4j image> <env file> [<tag>]
+    The env file uses the docker --env-file format, and contains the NEO4J_PLUGINS and configuration
+    environment variables that would otherwise be given to the container.
+    For example:
+        $0 neo4j:5.26.0-enterprise prebake.env
+        $0 neo4j:5.26.0 prebake.env my-neo4j:5.26.0-apoc
+    "
+    exit 1
+}
+
+## ==========================================
+## get and sanitise script inputs
+
+if [[ $# -lt 2 ]] || [[ $# -gt 3 ]]; then
+    usage
+fi
+BASE_IMAGE=${1}
+ENV_FILE=${2}
+PREBAKED_IMAGE_TAG=${3:-neo4jtest-prebaked:${RANDOM}}
+
+if [[ ! -f "${ENV_FILE}" ]]; then
+    echo >&2 "${ENV_FILE} does not exist."
+    usage
+fi
+if grep -q "^NEO4J_AUTH" "${ENV_FILE}"; then
+    echo >&2 "WARNING: ${ENV_FILE} sets a NEO4J_AUTH variable, which will be stored in the image in plain text."
+fi
+
+## ==================================================================================
+## construct local build context.
+## The plugins and configuration are pre-baked in a build stage, and copied into their own layers of the final image.
+
+PREBAKE_LOCALCXT_DIR=${BUILD_DIR}/prebaked/${PREBAKED_IMAGE_TAG//[:\/]/-}
+rm -rf "${PREBAKE_LOCALCXT_DIR}"
+mkdir -p "${PREBAKE_LOCALCXT_DIR}"
+cp "${ENV_FILE}" "${PREBAKE_LOCALCXT_DIR}"/prebake.env
+
+cat > "${PREBAKE_LOCALCXT_DIR}"/Dockerfile <<EOF
+FROM ${BASE_IMAGE} AS prebake
+COPY prebake.env /startup/prebake.env
+RUN /startup/docker-entrypoint.sh prebake
+
+FROM ${BASE_IMAGE}
+COPY --from=prebake --chown=neo4j:neo4j \${NEO4J_HOME}/plugins \${NEO4J_HOME}/plugins
+COPY --from=prebake --chown=neo4j:neo4j \${NEO4J_HOME}/conf \${NEO4J_HOME}/conf
+COPY --from=prebake /startup/prebake.env /startup/prebaked /startup/
+EOF
+
+## ==================================================================================
+## Finally we are ready to do a docker build...
+
+echo "Building pre-baked image from ${BASE_IMAGE} with the environment in ${ENV_FILE}."
+docker build --tag="${PREBAKED_IMAGE_TAG}" "${PREBAKE_LOCALCXT_DIR}"
+echo "Tagged pre-baked image ${PREBAKED_IMAGE_TAG}"
@@ -97,11 +97,14 @@ function check_mounted_folder_writable_with_chown
             # warn that we're about to chown the folder and then chown it
             echo "Warning: Folder mounted to \"${mountFolder}\" is not writable from inside container. Changing folder owner to ${userid}."
             chown -R "${userid}":"${groupid}" "${mountFolder}"
+        elif ownership_already_verified "${mountFolder}"; then
+            debug_msg "${mountFolder} has not changed since its file permissions were last verified"
         # check permissions on files in the folder
-        elif [ $(su-exec "${userid}":"${groupid}" find "${mountFolder}" -not -writable | wc -l) -gt 0 ]; then
+        elif has_unwritable_files "${mountFolder}" su-exec "${userid}":"${groupid}"; then
             echo "Warning: Some files inside \"${mountFolder}\" are not writable from inside container. Changing folder owner to ${userid}."
             chown -R "${userid}":"${groupid}" "${mountFolder}"
         fi
+        record_ownership_verified "${mountFolder}"
     else
         if [[ ! -w "${mountFolder}" ]]  && [[ "$(stat -c %U ${mountFolder})" != "neo4j" ]]; then
             print_permissions_advice_and_fail "${mountFolder}" "${userid}" "${groupid}"
@@ -109,6 +112,41 @@ function check_mounted_folder_writable_with_chown
     fi
 }
 
+function fix_neo4j_home_permissions
+{
+    # NEO4J_HOME should be owned by ${userid}, with folders and everything inside them set to 700 and conf files set to 600.
+    # Only files that don't already have the correct owner or mode are changed. Changing a file in an image layer copies
+    # it up to the container layer, so re-owning every jar in NEO4J_HOME on every start costs a lot of I/O.
+    local _start_ms="$(monotonic_time_ms)"
+    local _top_level_folders=()
+    local _fixed=0
+
+    mapfile -d '' -t _top_level_folders < <(find "${NEO4J_HOME}" -mindepth 1 -maxdepth 1 -type d -print0)
+
+    debug_msg "chowning files in ${NEO4J_HOME} not owned by ${userid}:${groupid}"
+    _fixed=$(( _fixed + $(find "${NEO4J_HOME}" \( ! -user "${userid}" -o ! -group "${groupid}" \) \
+                              -printf '.' -exec chown --no-dereference "${userid}":"${groupid}" {} + | wc -c) ))
+    if [ "$(stat -c %a "${NEO4J_HOME}")" != "700" ]; then
+        chmod 700 "${NEO4J_HOME}"
+        _fixed=$(( _fixed + 1 ))
+    fi
+    debug_msg "Setting all folders in ${NEO4J_HOME} to permissions 700"
+    if [ "${#_top_level_folders[@]}" -gt 0 ]; then
+        _fixed=$(( _fixed + $(find "${_top_level_folders[@]}" ! -type l ! \( -path "${NEO4J_HOME}/conf/*" -type f \) \
+                                  \( -perm /077 -o ! -perm -700 \) -printf '.' -exec chmod 700 {} + | wc -c) ))
+    fi
+    debug_msg "Setting all files in ${NEO4J_HOME}/conf to permissions 600"
+    _fixed=$(( _fixed + $(find "${NEO4J_HOME}"/conf -type f \( -perm /177 -o ! -perm -600 \) \
+                              -printf '.' -exec chmod 600 {} + | wc -c) ))
+
+    local _msg="Fixed ${_fixed} file owners or permissions in ${NEO4J_HOME} in $(( $(monotonic_time_ms) - _start_ms ))ms"
+    if [ "${_fixed}" -gt 0 ]; then
+        echo "${_msg}"
+    else
+        debug_msg "${_msg}"
+    fi
+}
+
 function load_plugin_from_location
 {
   # Install a plugin from location at runtime.
@@ -124,8 +162,14 @@ function load_plugin_from_location
 
   # Now we install the plugin that is shipped with Neo4j
   for filename in ${_location}; do
+    local _size="$(stat -c %s "${filename}")"
+    # cp --preserve keeps the modification time, so an unchanged size and modification time means the same jar.
+    if [ -f "${_destination}" ] && [ "$(stat -c '%s %Y' "${filename}")" == "$(stat -c '%s %Y' "${_destination}")" ]; then
+      echo "Plugin '${_plugin_name}' from ${filename} is already installed at ${_destination}, avoided copying ${_size} bytes"
+      continue
+    fi
     echo "Installing Plugin '${_plugin_name}' from ${_location} to ${_destination}"
-    cp --preserve "${filename}" "${_destination}"
+    cp --preserve --reflink=auto "${filename}" "${_destination}"
     chmod +rw ${_destination}
   done
 
@@ -135,11 +179,110 @@ function load_plugin_from_location
   fi
 }
 
+# When /plugins is mounted, downloaded plugin jars are kept in a cache there named by their sha256,
+# and the plugin versions they were resolved to are recorded in a lockfile, so that restarts need no network at all.
+plugin_cache_dir="/plugins/.cache"
+plugin_lockfile="/plugins/neo4j-plugins.lock"
+
+function link_cached_plugin_jar
+{
+    # Hard links a jar from the plugin cache to the destination, if the cached jar still has the expected sha256.
+    local _sha256="${1}"
+    local _destination="${2}"
+    local _cached="${plugin_cache_dir}/${_sha256}"
+
+    if [ -z "${_sha256}" ] || ! echo "${_sha256}  ${_cached}" | sha256sum --check --status 2>/dev/null; then
+        return 1
+    fi
+    rm -f "${_destination}"
+    ln "${_cached}" "${_destination}" 2>/dev/null || cp "${_cached}" "${_destination}"
+}
+
+function download_plugin_jar
+{
+    # Downloads a plugin jar to the destination, through the plugin cache if /plugins is mounted.
+    # Interrupted downloads to the cache are resumed. Sets downloaded_jar_sha256 if the jar was cached.
+    local _url="${1}"
+    local _destination="${2}"
+    local _url_key _sha256 _partial
+    downloaded_jar_sha256=""
+
+    if [ ! -d /plugins ] || ! mkdir -p "${plugin_cache_dir}" 2>/dev/null; then
+        # download next to the destination and only then move it into place, so a failed download leaves no broken jar.
+        _partial="${_destination}.partial"
+        if ! wget -q --timeout 300 --tries 30 --output-document="${_partial}" "${_url}"; then
+            rm -f "${_partial}"
+            return 1
+        fi
+        mv -f "${_partial}" "${_destination}"
+        return
+    fi
+
+    # cached jars are deliberately not named *.jar, so that neo4j does not load them from the cache as well.
+    _url_key="$(echo -n "${_url}" | sha256sum | cut -d' ' -f1)"
+    _sha256="$(cat "${plugin_cache_dir}/${_url_key}.sha256" 2>/dev/null)"
+    if link_cached_plugin_jar "${_sha256}" "${_destination}"; then
+        debug_msg "Using ${_url} from the plugin cache ${plugin_cache_dir}/${_sha256}"
+    else
+        _partial="${plugin_cache_dir}/${_url_key}.part"
+        if ! wget -q --continue --timeout 300 --tries 30 --output-document="${_partial}" "${_url}"; then
+            return 1
+        fi
+        _sha256="$(sha256sum "${_partial}" | cut -d' ' -f1)"
+        mv -f "${_partial}" "${plugin_cache_dir}/${_sha256}"
+        echo "${_sha256}" > "${plugin_cache_dir}/${_url_key}.sha256"
+        debug_msg "Added ${_url} to the plugin cache as ${plugin_cache_dir}/${_sha256}"
+        link_cached_plugin_jar "${_sha256}" "${_destination}"
+    fi
+    downloaded_jar_sha256="${_sha256}"
+}
+
+function get_locked_plugin
+{
+    # Prints the lockfile entry for a plugin resolved for this exact neo4j build, formatted as
+    # <plugin name> <neo4j version> <neo4j sha256> <jar url> <jar sha256> <jar size>, separated by tabs.
+    local _plugin_name="${1}"
+    if [ "${NEO4J_PLUGINS_REFRESH:-false}" == "true" ] || [ ! -f "${plugin_lockfile}" ]; then
+        return 1
+    fi
+    awk -F '\t' -v plugin="${_plugin_name}" -v neo4j_sha="${NEO4J_SHA256:-}" \
+        '$1 == plugin && $3 == neo4j_sha { print; found = 1; exit } END { exit !found }' "${plugin_lockfile}"
+}
+
+function write_plugin_lockfile
+{
+    # Replaces the lockfile entries for the given plugin entries, keeping entries for other plugins and neo4j builds.
+    local _new_lockfile _entry
+    local _relocked=""
+    if [ $# -eq 0 ] || [ ! -d /plugins ]; then
+        return 0
+    fi
+    for _entry in "${@}"; do
+        _relocked+="${_entry%%$'\t'*} "
+    done
+    if ! { _new_lockfile="$(mktemp "${plugin_lockfile}.XXXXXX")" && \
+           {
+               printf '# plugin\tneo4j version\tneo4j sha256\tjar url\tjar sha256\tjar size\n'
+               awk -F '\t' -v relocked="${_relocked}" -v neo4j_sha="${NEO4J_SHA256:-}" '
+                   BEGIN { split(relocked, names, " "); for (i in names) skip[names[i]] = 1 }
+                   /^#/ || ($3 == neo4j_sha && $1 in skip) { next }
+                   { print }' "${plugin_lockfile}" 2>/dev/null
+               printf '%s\n' "${@}"
+           } > "${_new_lockfile}" && \
+           mv -f "${_new_lockfile}" "${plugin_lockfile}"; } 2>/dev/null
+    then
+        echo >&2 "Warning: Could not write plugin lockfile ${plugin_lockfile}"
+        rm -f "${_new_lockfile:-}"
+    fi
+}
+
 function load_plugin_from_url
 {
     # Load a plugin at runtime. The provided github repository must have a versions.json on the master branch with the
     # correct format.
     local _plugin_name="${1}" #e.g. apoc, graph-algorithms, graph-ql
+    local _neo4j_version="${2}"
+    local _lock_entry_file="${3}" # the resolved plugin is written here, to be added to the lockfile
 
     local _plugins_dir="${NEO4J_HOME}/plugins"
     if [ -d /plugins ]; then
@@ -149,7 +292,6 @@ function load_plugin_from_url
     debug_msg "Will read ${_plugin_name} versions.json from ${_versions_json_url}"
     # Using the same name for the plugin irrespective of version ensures we don't end up with different versions of the same plugin
     local _destination="${_plugins_dir}/${_plugin_name}.jar"
-    local _neo4j_version="$(neo4j --version | cut -d' ' -f2)"
 
     # Now we call out to github to get the versions.json for this plugin and we parse that to find the url for the correct plugin jar for our neo4j version
     echo "Fetching versions.json for Plugin '${_plugin_name}' from ${_versions_json_url}"
@@ -168,47 +310,103 @@ function load_plugin_from_url
     This can happen with the newest Neo4j versions when a compatible plugin has not yet been released.
     You can either use an older version of Neo4j, or continue without ${_plugin_name}.
     Neo4j will continue to start, but \"${_plugin_name}\" will not be loaded."
-    else
-        echo "Installing Plugin '${_plugin_name}' from ${_plugin_jar_url} to ${_destination} "
-        wget -q --timeout 300 --tries 30 --output-document="${_destination}" "${_plugin_jar_url}"
-
-        if ! is_readable "${_destination}"; then
-            echo >&2 "Plugin at '${_destination}' is not readable"
-        exit 1
-        fi
+        return 1
+    fi
+    echo "Installing Plugin '${_plugin_name}' from ${_plugin_jar_url} to ${_destination} "
+    if ! download_plugin_jar "${_plugin_jar_url}" "${_destination}"; then
+        echo >&2 "ERROR: could not download ${_plugin_jar_url}.
+    This could indicate a problem with your network or this container's network settings.
+    Neo4j will continue to start, but \"${_plugin_name}\" will not be loaded."
+        return 1
+    fi
+    if [ -n "${downloaded_jar_sha256}" ]; then
+        printf '%s\t%s\t%s\t%s\t%s\t%s\n' "${_plugin_name}" "${_neo4j_version}" "${NEO4J_SHA256:-}" "${_plugin_jar_url}" \
+            "${downloaded_jar_sha256}" "$(stat -c %s "${_destination}")" > "${_lock_entry_file}"
     fi
 }
 
 function apply_plugin_default_configuration
 {
-    # Set the correct Load a plugin at runtime. The provided github repository must have a versions.json on the master branch with the
-    # correct format.
-    local _plugin_name="${1}" #e.g. apoc, graph-algorithms, graphql
-    local _reference_conf="${2}" # used to determine if we can override properties
+    # Merges the default properties of all the given plugins into neo4j.conf, with one jq call and one write.
+    # Properties are applied in plugin order, and the rules for each property are:
+    #  - set in the user provided config: leave it alone, the user knows best.
+    #  - already in neo4j.conf (for example from a previous plugin): add the plugin's value to the start of the list.
+    #  - otherwise: append it to neo4j.conf.
+    local _reference_conf="${1}" # used to determine if we can override properties
+    shift
     local _neo4j_conf="${NEO4J_HOME}/conf/neo4j.conf"
+    local _properties _new_conf
+    local _debug="no"
 
-    local _property _value
-    echo "Applying default values for plugin ${_plugin_name} to neo4j.conf"
-    for _entry in $(jq  --compact-output --raw-output "with_entries( select(.key==\"${_plugin_name}\") ) | to_entries[] | .value.properties | to_entries[]" /startup/neo4j-plugins.json); do
-        _property="$(jq --raw-output '.key' <<< "${_entry}")"
-        _value="$(jq --raw-output '.value' <<< "${_entry}")"
-        debug_msg "${_plugin_name} requires setting ${_property}=${_value}"
-
-        # the first grep strips out comments
-        if grep -o "^[^#]*" "${_reference_conf}" | grep -q --fixed-strings "${_property}=" ; then
-            # property is already set in the user provided config. In this case we don't override what has been set explicitly by the user.
-            echo "Skipping ${_property} for plugin ${_plugin_name} because it is already set."
-            echo "You may need to add ${_value} to the ${_property} setting in your configuration file."
-        else
-            if grep -o "^[^#]*" "${_neo4j_conf}" | grep -q --fixed-strings "${_property}=" ; then
-                sed --in-place "s/${_property}=/&${_value},/" "${_neo4j_conf}"
-                debug_msg "${_property} was already in the configuration file, so ${_value} was added to it."
-            else
-                echo -e "\n${_property}=${_value}" >> "${_neo4j_conf}"
-                debug_msg "${_property}=${_value} has been added to the configuration file."
-            fi
-        fi
-    done
+    if [ $# -eq 0 ]; then
+        return 0
+    fi
+    if debugging_enabled; then
+        _debug="yes"
+    fi
+    _properties="$(mktemp)"
+    _new_conf="$(mktemp)"
+    jq --raw-output '. as $plugins | $ARGS.positional[] as $name
+                     | [$name, ($plugins[$name].properties // {} | to_entries[] | .key, (.value | tostring))]
+                     | @tsv' /startup/neo4j-plugins.json --args "${@}" > "${_properties}"
+
+    awk -F '\t' \
+        -v properties="${_properties}" \
+        -v reference_conf="${_reference_conf}" \
+        -v neo4j_conf="${_neo4j_conf}" \
+        -v new_conf="${_new_conf}" \
+        -v debug="${_debug}" '
+        function active(line) {
+            # the part of the line before any comment
+            sub(/#.*/, "", line)
+            return line
+        }
+        function is_set(lines, count, property,    i) {
+            for (i = 1; i <= count; i++) {
+                if (index(active(lines[i]), property "=") > 0) return 1
+            }
+            return 0
+        }
+        function debug_msg(msg) {
+            if (debug == "yes") print msg
+        }
+        FILENAME == properties { plugins[++num_plugins] = $0; next }
+        FILENAME == reference_conf { reference[++num_reference] = $0; next }
+        FILENAME == neo4j_conf { conf[++num_conf] = $0; next }
+        END {
+            for (p = 1; p <= num_plugins; p++) {
+                num_fields = split(plugins[p], fields, "\t")
+                print "Applying default values for plugin " fields[1] " to neo4j.conf"
+                for (f = 2; f < num_fields; f += 2) {
+                    property = fields[f]
+                    value = fields[f + 1]
+                    debug_msg(fields[1] " requires setting " property "=" value)
+                    if (is_set(reference, num_reference, property)) {
+                        # property is already set in the user provided config. In this case we dont override what has been set explicitly by the user.
+                        print "Skipping " property " for plugin " fields[1] " because it is already set."
+                        print "You may need to add " value " to the " property " setting in your configuration file."
+                    } else if (is_set(conf, num_conf, property)) {
+                        for (i = 1; i <= num_conf; i++) {
+                            at = index(conf[i], property "=")
+                            if (at > 0) {
+                                at += length(property) + 1
+                                conf[i] = substr(conf[i], 1, at - 1) value "," substr(conf[i], at)
+                            }
+                        }
+                        debug_msg(property " was already in the configuration file, so " value " was added to it.")
+                    } else {
+                        conf[++num_conf] = ""
+                        conf[++num_conf] = property "=" value
+                        debug_msg(property "=" value " has been added to the configuration file.")
+                    }
+                }
+            }
+            for (i = 1; i <= num_conf; i++) print conf[i] > new_conf
+        }' "${_properties}" "${_reference_conf}" "${_neo4j_conf}"
+
+    # rewrite the existing file in place so that its ownership and permissions are preserved
+    cat "${_new_conf}" > "${_neo4j_conf}"
+    rm "${_properties}" "${_new_conf}"
 }
 
 function install_neo4j_plugins
@@ -224,6 +422,11 @@ function install_neo4j_plugins
         fi
     done
 
+    local _plugins_dir="${NEO4J_HOME}/plugins"
+    if [ -d /plugins ]; then
+        _plugins_dir="/plugins"
+    fi
+
     # We store a copy of the config before we modify it for the plugins to allow us to see if there are user-set values in the input config that we shouldn't override
     local _old_config="$(mktemp)"
     if [ -e "${NEO4J_HOME}"/conf/neo4j.conf ]; then
@@ -232,68 +435,251 @@ function install_neo4j_plugins
         touch "${NEO4J_HOME}"/conf/neo4j.conf
         touch "${_old_config}"
     fi
-    for plugin_name in $(echo "${NEO4J_PLUGINS}" | jq --raw-output '.[]'); do
+    # plugins that have to be downloaded are all downloaded at the same time,
+    # but the plugin configurations are still applied in the order the plugins were requested.
+    # Plugins already in the lockfile are installed from the plugin cache without going to the network at all.
+    local _requested_plugins=($(echo "${NEO4J_PLUGINS}" | jq --raw-output '.[]'))
+    local _locations=()
+    local _download_pids=()
+    local _lock_entries=()
+    local _installed_plugins=()
+    local _lock_entry_dir="$(mktemp -d)"
+    local _neo4j_version=""
+    local _i _lock_entry _jar_url _jar_sha256
+    for _i in "${!_requested_plugins[@]}"; do
+        plugin_name="${_requested_plugins[${_i}]}"
         debug_msg "Plugin ${plugin_name} has been requested"
-        local _location="$(jq --raw-output "with_entries( select(.key==\"${plugin_name}\") ) | to_entries[] | .value.location" /startup/neo4j-plugins.json )"
-        if [ "${_location}" != "null" -a -n "$(shopt -s nullglob; echo ${_location})" ]; then
-            debug_msg "$plugin_name is already in the container at ${_location}"
-            load_plugin_from_location "${plugin_name}" "${_location}"
-            debug_msg "Applying plugin specific configurations."
-            apply_plugin_default_configuration "${plugin_name}" "${_old_config}"
-        else
-            debug_msg "$plugin_name must be downloaded."
-            if load_plugin_from_url "${plugin_name}"; then
-                debug_msg "Applying plugin specific configurations."
-                apply_plugin_default_configuration "${plugin_name}" "${_old_config}"
+        _locations[${_i}]="$(jq --raw-output "with_entries( select(.key==\"${plugin_name}\") ) | to_entries[] | .value.location" /startup/neo4j-plugins.json )"
+        if [ "${_locations[${_i}]}" != "null" -a -n "$(shopt -s nullglob; echo ${_locations[${_i}]})" ]; then
+            continue
+        fi
+        if _lock_entry="$(get_locked_plugin "${plugin_name}")"; then
+            IFS=$'\t' read -r _ _ _ _jar_url _jar_sha256 _ <<< "${_lock_entry}"
+            if link_cached_plugin_jar "${_jar_sha256}" "${_plugins_dir}/${plugin_name}.jar"; then
+                echo "Installing Plugin '${plugin_name}' from ${_jar_url} as locked in ${plugin_lockfile}"
+                _lock_entries[${_i}]="${_lock_entry}"
+                continue
             fi
+            debug_msg "The locked ${plugin_name} jar is missing from the plugin cache, so it must be resolved again."
+        fi
+        debug_msg "$plugin_name must be downloaded."
+        : ${_neo4j_version:=$(neo4j --version | cut -d' ' -f2)}
+        load_plugin_from_url "${plugin_name}" "${_neo4j_version}" "${_lock_entry_dir}/${_i}" &
+        _download_pids[${_i}]=$!
+    done
+
+    for _i in "${!_requested_plugins[@]}"; do
+        plugin_name="${_requested_plugins[${_i}]}"
+        if [ -n "${_lock_entries[${_i}]:-}" ]; then
+            debug_msg "$plugin_name was installed from the plugin cache"
+        elif [ -z "${_download_pids[${_i}]:-}" ]; then
+            debug_msg "$plugin_name is already in the container at ${_locations[${_i}]}"
+            load_plugin_from_location "${plugin_name}" "${_locations[${_i}]}"
+        elif ! wait "${_download_pids[${_i}]}"; then
+            continue
+        elif ! is_readable "${_plugins_dir}/${plugin_name}.jar"; then
+            echo >&2 "Plugin at '${_plugins_dir}/${plugin_name}.jar' is not readable"
+            exit 1
+        elif [ -s "${_lock_entry_dir}/${_i}" ]; then
+            _lock_entries[${_i}]="$(cat "${_lock_entry_dir}/${_i}")"
         fi
+        _installed_plugins+=("${plugin_name}")
     done
+    rm -rf "${_lock_entry_dir}"
+    write_plugin_lockfile "${_lock_entries[@]}"
+    debug_msg "Applying plugin specific configurations."
+    apply_plugin_default_configuration "${_old_config}" "${_installed_plugins[@]}"
     rm "${_old_config}"
 }
 
-function add_docker_default_to_conf
+function render_settings_to_conf
 {
-    # docker defaults should NOT overwrite values already in the conf file
+    # Merges a batch of settings into neo4j.conf and apoc.conf with a single pass over each file.
+    # Each argument is a setting record formatted as "<default|env><TAB><setting><TAB><value>".
+    #  - default: docker defaults should NOT overwrite values already in the conf file.
+    #  - env: settings from environment variables should overwrite values already in the conf,
+    #         except for the _append_not_replace_configs which are appended after any existing values.
+    # Settings beginning with apoc. are written to apoc.conf, everything else goes to neo4j.conf.
+    local _neo4j_conf="${NEO4J_HOME}"/conf/neo4j.conf
+    local _apoc_conf="${NEO4J_HOME}"/conf/apoc.conf
+    local _append_not_replace_configs=("server.jvm.additional")
+    local _conf_files=("${_neo4j_conf}")
+    local _records _new_neo4j_conf _new_apoc_conf _record
+    local _write_apoc_conf="no"
+    local _debug="no"
+
+    if [ $# -eq 0 ]; then
+        return 0
+    fi
+    if [ -e "${_apoc_conf}" ]; then
+        _conf_files+=("${_apoc_conf}")
+        _write_apoc_conf="yes"
+    fi
+    for _record in "${@}"; do
+        if [[ "${_record}" == "env"$'\t'"apoc"[.$'\t']* ]]; then
+            _write_apoc_conf="yes"
+        fi
+    done
+    if debugging_enabled; then
+        _debug="yes"
+    fi
+    _records="$(mktemp)"
+    _new_neo4j_conf="$(mktemp)"
+    _new_apoc_conf="$(mktemp)"
+    printf '%s\n' "${@}" > "${_records}"
+    [ -e "${_neo4j_conf}" ] || touch "${_neo4j_conf}"
+
+    awk -F '\t' \
+        -v records="${_records}" \
+        -v neo4j_conf="${_neo4j_conf}" \
+        -v apoc_conf="${_apoc_conf}" \
+        -v new_neo4j_conf="${_new_neo4j_conf}" \
+        -v new_apoc_conf="${_new_apoc_conf}" \
+        -v append_not_replace="${_append_not_replace_configs[*]}" \
+        -v debug="${_debug}" '
+        function conf_for(setting) {
+            return (substr(setting, 1, 5) == "apoc." || setting == "apoc") ? "apoc" : "neo4j"
+        }
+        function key_of(line) {
+            if (line ~ /^#/ || index(line, "=") == 0) return ""
+            return substr(line, 1, index(line, "=") - 1)
+        }
+        function debug_msg(msg) {
+            if (debug == "yes") print msg
+        }
+        BEGIN {
+            split(append_not_replace, _appends, " ")
+            for (i in _appends) appends[_appends[i]] = 1
+        }
+        FILENAME == records {
+            setting = $2
+            value = substr($0, length($1) + length($2) + 3)
+            if ($1 == "default") {
+                if (!(setting in defaults)) default_order[++num_defaults] = setting
+                defaults[setting] = value
+            } else {
+                conf = conf_for(setting)
+                env_setting[++num_env] = setting
+                env_value[num_env] = value
+                env_conf[num_env] = conf
+                if (!(setting in appends)) replaced[conf, setting] = 1
+            }
+            next
+        }
+        {
+            conf = (FILENAME == apoc_conf) ? "apoc" : "neo4j"
+            out = (conf == "apoc") ? new_apoc_conf : new_neo4j_conf
+            key = key_of($0)
+            if (conf == "neo4j" && key in defaults) default_present[key] = 1
+            if (key != "" && (conf, key) in replaced) {
+                debug_msg("Removing existing setting for " key " in " FILENAME)
+                next
+            }
+            print > out
+        }
+        END {
+            for (i = 1; i <= num_defaults; i++) {
+                setting = default_order[i]
+                if (setting in default_present || ("neo4j", setting) in replaced) continue
+                debug_msg("Appended " setting "=" defaults[setting] " to " neo4j_conf)
+                print setting "=" defaults[setting] > new_neo4j_conf
+            }
+            for (i = 1; i <= num_env; i++) {
+                out = (env_conf[i] == "apoc") ? new_apoc_conf : new_neo4j_conf
+                debug_msg("Appended " env_setting[i] "=" env_value[i] " to " ((env_conf[i] == "apoc") ? apoc_conf : neo4j_conf))
+                print env_setting[i] "=" env_value[i] > out
+            }
+        }' "${_records}" "${_conf_files[@]}"
+
+    # rewrite the existing files in place so that their ownership and permissions are preserved
+    cat "${_new_neo4j_conf}" > "${_neo4j_conf}"
+    if [ "${_write_apoc_conf}" == "yes" ]; then
+        cat "${_new_apoc_conf}" > "${_apoc_conf}"
+    fi
+    rm "${_records}" "${_new_neo4j_conf}" "${_new_apoc_conf}"
+}
+
+function check_conf_setting_value
+{
+    # setting records are separated by newlines and their fields by tabs, and a conf file line can't hold a newline,
+    # so values containing either can't be written to the conf files.
     local _setting="${1}"
     local _value="${2}"
-
-    if [ ! -e "${NEO4J_HOME}"/conf/neo4j.conf ] || ! grep -q "^${_setting}=" "${NEO4J_HOME}"/conf/neo4j.conf
-    then
-        debug_msg "Appended ${_setting}=${_value} to ${NEO4J_HOME}/conf/neo4j.conf"
-        echo -e "\n"${_setting}=${_value} >> "${NEO4J_HOME}"/conf/neo4j.conf
+    if [[ "${_value}" == *$'\n'* ]] || [[ "${_value}" == *$'\t'* ]]; then
+        echo >&2 "Invalid value for ${_setting}: configuration values cannot contain newlines or tabs."
+        exit 1
     fi
 }
 
+function queue_conf_setting
+{
+    # queues a setting to be written to the conf files by the next render_settings_to_conf "${conf_settings[@]}"
+    local _type="${1}" # either default or env
+    check_conf_setting_value "${2}" "${3}"
+    conf_settings+=("${_type}"$'\t'"${2}"$'\t'"${3}")
+}
+
+function add_docker_default_to_conf
+{
+    # docker defaults should NOT overwrite values already in the conf file
+    check_conf_setting_value "${1}" "${2}"
+    render_settings_to_conf "default"$'\t'"${1}"$'\t'"${2}"
+}
+
 function add_env_setting_to_conf
 {
     # settings from environment variables should overwrite values already in the conf
-    local _setting=${1}
-    local _value=${2}
-    local _conf_file
-    local _append_not_replace_configs=("server.jvm.additional")
+    check_conf_setting_value "${1}" "${2}"
+    render_settings_to_conf "env"$'\t'"${1}"$'\t'"${2}"
+}
 
-    # different settings need to go in different files now.
-    case "$(echo ${_setting} | cut -d . -f 1)" in
-        apoc)
-            _conf_file="${NEO4J_HOME}"/conf/apoc.conf
-        ;;
-        *)
-            _conf_file="${NEO4J_HOME}"/conf/neo4j.conf
-        ;;
+# set-initial-password only has an effect until the system database has been created,
+# so once we have set the initial password for a system database we don't need to start neo4j-admin again.
+initial_password_marker="${ENTRYPOINT_CACHE_DIR}/initial-password-set"
+
+function get_data_directory
+{
+    # prints the absolute path of the neo4j data directory configured in neo4j.conf
+    local _data_dir
+    _data_dir="$(grep -E "^server.directories.data=" "${NEO4J_HOME}"/conf/neo4j.conf | tail -n 1 | cut -d'=' -f2-)"
+    case "${_data_dir:=${NEO4J_HOME}/data}" in
+        /*) echo "${_data_dir}" ;;
+        *) echo "${NEO4J_HOME}/${_data_dir}" ;;
     esac
+}
 
-    if [ -e "${_conf_file}" ] && grep -q -F "${_setting}=" "${_conf_file}"; then
-        if containsElement "${_setting}" "${_append_not_replace_configs[@]}"; then
-            debug_msg "${_setting} will be appended to ${_conf_file} without replacing existing settings."
-        else
-            # Remove any lines containing the setting already
-            debug_msg "Removing existing setting for ${_setting} in ${_conf_file}"
-            sed --in-place "/^${_setting}=.*/d" "${_conf_file}"
-        fi
+function get_system_database_id
+{
+    # prints an identifier for the system database folder, or nothing if there is no system database yet.
+    local _data_dir="$(get_data_directory)"
+    if [ -d "${_data_dir}/databases/system" ]; then
+        stat -L -c "%i:%W" "${_data_dir}/databases/system"
+    fi
+}
+
+function initial_password_already_set
+{
+    local _system_db_id _marker_id
+    _system_db_id="$(get_system_database_id)"
+    if [ -z "${_system_db_id}" ] || [ ! -f "${initial_password_marker}" ]; then
+        return 1
+    fi
+    _marker_id="$(cat "${initial_password_marker}")"
+    if [ "${_marker_id}" == "pending" ]; then
+        # the password was set before neo4j created the system database, so it applies to this system database.
+        echo "${_system_db_id}" | write_entrypoint_cache_file "${initial_password_marker}" || true
+        return 0
+    fi
+    test "${_marker_id}" == "${_system_db_id}"
+}
+
+function record_initial_password_set
+{
+    local _system_db_id
+    _system_db_id="$(get_system_database_id)"
+    if ! echo "${_system_db_id:-pending}" | write_entrypoint_cache_file "${initial_password_marker}"; then
+        debug_msg "Could not record that the initial password was set in ${initial_password_marker}"
     fi
-    # Then always append setting to file
-    debug_msg "Appended ${_setting}=${_value} to ${_conf_file}"
-    echo "${_setting}=${_value}" >> "${_conf_file}"
 }
 
 function set_initial_password
@@ -347,9 +733,18 @@ If Neo4j fails to start, you can:
             if debugging_enabled; then
                 extra_args+=("--verbose")
             fi
+            # NEO4J_AUTH_FORCE_SET_INITIAL_PASSWORD=true only ignores the marker, in case it is wrong about the system
+            # database. It does not reset a password: neo4j-admin ignores the initial password once the system database
+            # exists, so after that the password can only be changed in Cypher.
+            if [ "${NEO4J_AUTH_FORCE_SET_INITIAL_PASSWORD:-false}" != "true" ] && initial_password_already_set; then
+                debug_msg "Skipping setting initial password because it has already been set for this system database."
+                debug_msg "Setting it again has no effect on an existing system database, change the password with ALTER USER instead."
+                return
+            fi
             debug_msg "Setting initial password"
             debug_msg "${neo4j_admin_cmd} dbms set-initial-password ***** ${extra_args[*]}"
             ${neo4j_admin_cmd} dbms set-initial-password "${password}" "${extra_args[@]}"
+            record_initial_password_set
 
         elif [ -n "${_neo4j_auth:-}" ]; then
             echo "$_neo4j_auth is invalid"
@@ -359,8 +754,341 @@ If Neo4j fails to start, you can:
     fi
 }
 
+function memory_setting_source
+{
+    # Prints where a memory setting has already been set by the user, if anywhere.
+    local _setting="${1}"
+    local _env_name="NEO4J_${_setting//_/__}"
+    _env_name="${_env_name//./_}"
+    if [ -n "${!_env_name:-}" ]; then
+        echo "the environment"
+    elif grep -q "^${_setting//./\\.}=" "${NEO4J_HOME}"/conf/neo4j.conf; then
+        echo "neo4j.conf"
+    fi
+}
+
+function queue_auto_memory_settings
+{
+    # Sizes the heap and page cache to fit the container memory limit and the databases in /data,
+    # using neo4j-admin server memory-recommendation.
+    # Memory settings from the environment or neo4j.conf are left as they are.
+    local _memory_limit="$(get_container_memory_limit)"
+    local _recommendation_args=("server" "memory-recommendation" "--docker")
+    local _recommendation _line _setting _value _source
+
+    if [ -n "${_memory_limit}" ]; then
+        _recommendation_args+=("--memory=$(( _memory_limit / 1024 / 1024 ))m")
+        echo "Automatic memory sizing: container memory limit is $(( _memory_limit / 1024 / 1024 ))MiB."
+    else
+        echo "Automatic memory sizing: container memory is not limited, so sizing for all system memory."
+    fi
+    if ! _recommendation="$(${neo4j_admin_cmd} "${_recommendation_args[@]}" 2>/dev/null)"; then
+        echo >&2 "Warning: Could not get a memory recommendation from neo4j-admin, so memory settings will not be sized automatically."
+        return 1
+    fi
+
+    # the recommendation is printed as lines like NEO4J_server_memory_heap_max__size='1g'
+    while IFS= read -r _line; do
+        if [[ ! "${_line}" =~ ^NEO4J_(server_memory_[A-Za-z0-9_]+)=\'?([^\']*)\'?$ ]]; then
+            continue
+        fi
+        _setting="${BASH_REMATCH[1]//_/.}"
+        _setting="${_setting//../_}"
+        _value="${BASH_REMATCH[2]}"
+        # the initial heap size must not be larger than the max heap size, so if the user set either, keep both.
+        if [[ "${_setting}" == server.memory.heap.* ]]; then
+            _source="$(memory_setting_source server.memory.heap.initial_size)"
+            : ${_source:=$(memory_setting_source server.memory.heap.max_size)}
+        else
+            _source="$(memory_setting_source "${_setting}")"
+        fi
+        if [ -n "${_source}" ]; then
+            echo "Automatic memory sizing: keeping ${_setting} as set in ${_source}."
+        else
+            echo "Automatic memory sizing: setting ${_setting}=${_value}"
+            queue_conf_setting default "${_setting}" "${_value}"
+        fi
+    done <<< "${_recommendation}"
+}
+
+function queue_pagecache_warmup_settings
+{
+    # Enterprise Edition periodically records which pages are in the page cache, and loads them again on restart.
+    # NEO4J_PAGECACHE_WARMUP=true makes sure this is on, and =preload loads the whole store instead.
+    if [ "${NEO4J_EDITION}" != "enterprise" ]; then
+        echo >&2 "Warning: NEO4J_PAGECACHE_WARMUP is set but page cache warmup is only available in Neo4j Enterprise Edition."
+        return 0
+    fi
+    case "${NEO4J_PAGECACHE_WARMUP}" in
+        true)
+            queue_conf_setting default "db.memory.pagecache.warmup.enable" "true"
+            ;;
+        preload)
+            queue_conf_setting default "db.memory.pagecache.warmup.enable" "true"
+            queue_conf_setting default "db.memory.pagecache.warmup.preload" "true"
+            ;;
+        *)
+            echo >&2 "Warning: NEO4J_PAGECACHE_WARMUP=${NEO4J_PAGECACHE_WARMUP} is not valid, it must be true or preload."
+            ;;
+    esac
+}
+
+# The JVM flags for each NEO4J_JVM_PROFILE. Both ZGC and the G1 pause target are tuned for latency or throughput,
+# and the small footprint profile trades peak performance for memory.
+declare -A jvm_profiles=(
+    ["throughput"]="-XX:+UseG1GC -XX:MaxGCPauseMillis=500 -XX:+ParallelRefProcEnabled -XX:+AlwaysPreTouch"
+    ["low-latency"]="-XX:+UseZGC -XX:+ZGenerational -XX:+AlwaysPreTouch"
+    ["small-footprint"]="-XX:+UseSerialGC -XX:+UseStringDeduplication -XX:-AlwaysPreTouch -XX:ReservedCodeCacheSize=64m"
+)
+jvm_profile_cache="${ENTRYPOINT_CACHE_DIR}/jvm-profile"
+
+function jvm_flag_group
+{
+    # Flags that choose the garbage collector are all one group. Any other flag is in a group of its own.
+    local _flag="${1}"
+    if [[ "${_flag}" =~ ^-XX:[+-](Use[A-Za-z0-9]*GC|ZGenerational)$ ]]; then
+        echo "gc"
+        return
+    fi
+    _flag="${_flag#-XX:}"
+    _flag="${_flag#[+-]}"
+    echo "${_flag%%=*}"
+}
+
+function validate_jvm_flags
+{
+    # Prints the flags that the java in this image accepts, and warns about the rest.
+    # The result is cached, since checking the flags starts a JVM.
+    local _cache_key _flag
+    local _cached=()
+    _cache_key="$( { cat "${JAVA_HOME:-}/release" 2>/dev/null; echo "${@}"; } | sha256sum | cut -d' ' -f1)"
+    if [ -r "${jvm_profile_cache}" ]; then
+        mapfile -t _cached < "${jvm_profile_cache}"
+        if [ "${#_cached[@]}" -gt 0 ] && [ "${_cached[0]}" == "${_cache_key}" ]; then
+            debug_msg "Using JVM flags validated in ${jvm_profile_cache}"
+            printf '%s\n' "${_cached[@]:1}"
+            return
+        fi
+    fi
+    _cached=()
+    if java "${@}" -version > /dev/null 2>&1; then
+        _cached=("${@}")
+    else
+        for _flag in "${@}"; do
+            if java "${_flag}" -version > /dev/null 2>&1; then
+                _cached+=("${_flag}")
+            else
+                echo >&2 "Warning: ${_flag} is not supported by the java in this image, so it will not be used."
+            fi
+        done
+    fi
+    printf '%s\n' "${_cache_key}" "${_cached[@]}" | write_entrypoint_cache_file "${jvm_profile_cache}" || true
+    printf '%s\n' "${_cached[@]}"
+}
+
+function queue_jvm_profile_settings
+{
+    # Queues the JVM flags of the NEO4J_JVM_PROFILE, replacing the flags in the same group that the image's
+    # neo4j.conf ships with. Flag groups that the user set in NEO4J_server_jvm_additional or in a mounted
+    # /conf are left as they are.
+    local _neo4j_conf="${NEO4J_HOME}"/conf/neo4j.conf
+    local _user_groups=() _profile_groups=() _profile_flags=() _flags=() _conf_lines=() _words=()
+    local _flag _group _line
+
+    if [ -z "${jvm_profiles[${NEO4J_JVM_PROFILE}]+x}" ]; then
+        echo >&2 "Warning: NEO4J_JVM_PROFILE=${NEO4J_JVM_PROFILE} is not valid, it must be one of: ${!jvm_profiles[*]}."
+        return 0
+    fi
+    while read -r -a _words; do
+        for _flag in "${_words[@]}"; do
+            _user_groups+=("$(jvm_flag_group "${_flag}")")
+        done
+    done < <(
+        echo "${NEO4J_server_jvm_additional:-}"
+        if [ -d /conf ]; then
+            sed -n 's/^server\.jvm\.additional=//p' "${_neo4j_conf}" 2>/dev/null
+        fi
+    )
+    for _flag in ${jvm_profiles[${NEO4J_JVM_PROFILE}]}; do
+        _group="$(jvm_flag_group "${_flag}")"
+        if containsElement "${_group}" "${_user_groups[@]}"; then
+            echo "JVM profile ${NEO4J_JVM_PROFILE}: keeping the ${_group} flag set by the user instead of ${_flag}"
+        else
+            _flags+=("${_flag}")
+        fi
+    done
+    if [ "${#_flags[@]}" -eq 0 ]; then
+        return 0
+    fi
+    mapfile -t _profile_flags < <(validate_jvm_flags "${_flags[@]}")
+    if [ "${#_profile_flags[@]}" -eq 0 ]; then
+        return 0
+    fi
+    echo "JVM profile ${NEO4J_JVM_PROFILE}: using ${_profile_flags[*]}"
+
+    for _flag in "${_profile_flags[@]}"; do
+        _profile_groups+=("$(jvm_flag_group "${_flag}")")
+    done
+    if [ ! -d /conf ] && [ -f "${_neo4j_conf}" ]; then
+        mapfile -t _conf_lines < "${_neo4j_conf}"
+        for _line in "${_conf_lines[@]}"; do
+            if [[ "${_line}" == server.jvm.additional=* ]] && \
+                containsElement "$(jvm_flag_group "${_line#server.jvm.additional=}")" "${_profile_groups[@]}"; then
+                debug_msg "Removing ${_line} from ${_neo4j_conf} for JVM profile ${NEO4J_JVM_PROFILE}"
+                continue
+            fi
+            printf '%s\n' "${_line}"
+        done > "${_neo4j_conf}.jvm-profile"
+        # rewrite the existing file in place so that its ownership and permissions are preserved
+        cat "${_neo4j_conf}.jvm-profile" > "${_neo4j_conf}"
+        rm "${_neo4j_conf}.jvm-profile"
+    fi
+    for _flag in "${_profile_flags[@]}"; do
+        queue_conf_setting env "server.jvm.additional" "${_flag}"
+    done
+}
+
+function setup_ephemeral_data_directory
+{
+    # With NEO4J_EPHEMERAL=true, the data directory and the transaction logs in it are put on a tmpfs, since the data
+    # is thrown away with the container anyway. A tmpfs is only available if /data was mounted as one,
+    # if we are allowed to mount one, or in /dev/shm.
+    local _shm_data_dir="/dev/shm/neo4j-data"
+    if [ "$(stat -f -c %T /data 2>/dev/null)" == "tmpfs" ]; then
+        debug_msg "/data is already a tmpfs"
+    elif running_as_root && mount -t tmpfs -o mode=0755 tmpfs /data 2>/dev/null; then
+        debug_msg "Mounted a tmpfs on /data"
+    elif [ "$(stat -f -c %T /dev/shm 2>/dev/null)" == "tmpfs" ] && mkdir -p "${_shm_data_dir}" 2>/dev/null; then
+        if running_as_root; then
+            chown "${userid}":"${groupid}" "${_shm_data_dir}"
+        fi
+        : ${NEO4J_server_directories_data:="${_shm_data_dir}"}
+        echo >&2 "Warning: NEO4J_EPHEMERAL: /data is not a tmpfs, so the data directory is ${_shm_data_dir} instead.
+    Docker limits /dev/shm to 64MB unless the container is started with --shm-size,
+    so it is better to start the container with --tmpfs /data."
+    else
+        echo >&2 "Warning: NEO4J_EPHEMERAL: no tmpfs is available, so data is still written to disk in /data."
+    fi
+    echo >&2 "
+=======================================================
+NEO4J_EPHEMERAL=true: ALL DATA IN THIS CONTAINER IS LOST WHEN IT STOPS.
+Data is kept in memory and transaction logs are neither preallocated nor kept.
+Never use this for data you want to keep.
+======================================================="
+}
+
+function apply_small_profile
+{
+    # NEO4J_PROFILE=small is for packing many small instances onto one host. It shrinks memory, thread pools,
+    # transaction logs and log rotation, and uses the small-footprint JVM profile. These are all defaults,
+    # so anything the user sets still wins.
+    local _conf_file _new_conf
+    if [ "${NEO4J_AUTO_MEMORY:-false}" != "true" ]; then
+        queue_conf_setting default "server.memory.pagecache.size" "32M"
+        # the initial heap size must not be larger than the max heap size, so if the user set either, keep both.
+        if [ -z "$(memory_setting_source server.memory.heap.initial_size)$(memory_setting_source server.memory.heap.max_size)" ]; then
+            queue_conf_setting default "server.memory.heap.initial_size" "64M"
+            queue_conf_setting default "server.memory.heap.max_size" "256M"
+        fi
+    fi
+    queue_conf_setting default "dbms.memory.transaction.total.max" "128M"
+    queue_conf_setting default "server.bolt.thread_pool_min_size" "1"
+    queue_conf_setting default "server.bolt.thread_pool_max_size" "16"
+    queue_conf_setting default "db.tx_log.preallocate" "false"
+    queue_conf_setting default "db.tx_log.rotation.size" "16M"
+    queue_conf_setting default "db.tx_log.rotation.retention_policy" "2 files"
+    : ${NEO4J_JVM_PROFILE:=small-footprint}
+
+    # log rotation is configured in the log4j files. Mounted conf files are left as the user wrote them.
+    if [ -d /conf ]; then
+        return 0
+    fi
+    for _conf_file in "${NEO4J_HOME}"/conf/server-logs.xml "${NEO4J_HOME}"/conf/user-logs.xml; do
+        [ -f "${_conf_file}" ] || continue
+        _new_conf="$(mktemp)"
+        sed -e 's/\(<SizeBasedTriggeringPolicy size="\)[^"]*"/\15 MB"/' \
+            -e 's/\(<DefaultRolloverStrategy [^>]*max="\)[0-9]*"/\12"/' "${_conf_file}" > "${_new_conf}"
+        # rewrite the existing file in place so that its ownership and permissions are preserved
+        cat "${_new_conf}" > "${_conf_file}"
+        rm "${_new_conf}"
+    done
+}
+
+function prefetch_store_files
+{
+    # Reads every store file once, so that after a restart the page cache fills up from the OS file cache
+    # instead of from disk. The files are read in parallel, since network volumes are much faster that way.
+    local _databases_dir="$(get_data_directory)/databases"
+    local _start_ms="$(monotonic_time_ms)"
+    local _store_bytes _memory_limit
+
+    if [ ! -d "${_databases_dir}" ]; then
+        debug_msg "No store files to prefetch in ${_databases_dir}"
+        return 0
+    fi
+    _store_bytes="$(find "${_databases_dir}" -type f -printf '%s\n' | awk '{ total += $1 } END { printf "%d", total }')"
+    _memory_limit="$(get_container_memory_limit)"
+    if [ -n "${_memory_limit}" ] && [ "${_store_bytes}" -gt "${_memory_limit}" ]; then
+        echo "Not prefetching store files because they are larger than the container memory limit."
+        return 0
+    fi
+    if ! find "${_databases_dir}" -type f -print0 | \
+        xargs -0 --no-run-if-empty --max-args=16 --max-procs="$(nproc)" cat > /dev/null 2>&1
+    then
+        echo >&2 "Warning: Some store files in ${_databases_dir} could not be prefetched."
+    fi
+    echo "Prefetched $(( _store_bytes / 1024 / 1024 ))MiB of store files in $(( $(monotonic_time_ms) - _start_ms ))ms."
+}
+
+# Images built with build-prebaked-image.sh have their plugins installed and conf files rendered at build time.
+# prebake.env holds the environment the image was built with, and the marker holds the fingerprint of that environment.
+prebake_env_file="/startup/prebake.env"
+prebake_marker_file="/startup/prebaked"
+
+function load_prebake_environment
+{
+    # Exports the variables in prebake.env, which uses the docker --env-file format.
+    # Variables given to the container take precedence over the pre-baked ones.
+    local _line _name
+    while IFS= read -r _line || [ -n "${_line}" ]; do
+        _name="${_line%%=*}"
+        if [[ "${_line}" != *=* ]] || [[ ! "${_name}" =~ ^[A-Za-z_][A-Za-z0-9_]*$ ]]; then
+            continue
+        fi
+        if [ -z "${!_name+x}" ]; then
+            export "${_line}"
+        fi
+    done < "${prebake_env_file}"
+}
+
+function get_prebake_fingerprint
+{
+    # Hashes every NEO4J_ variable that decides which plugins are installed or what goes into the conf files.
+    local _name
+    for _name in $(printf '%s\n' "${!NEO4J_@}" | sort); do
+        case "${_name}" in
+            NEO4J_AUTH|NEO4J_AUTH_PATH|NEO4J_AUTH_FORCE_SET_INITIAL_PASSWORD|NEO4J_ACCEPT_LICENSE_AGREEMENT|\
+            NEO4J_DEBUG|NEO4J_STARTUP_PROFILE|NEO4J_PAGECACHE_PREFETCH|NEO4J_CLASS_DATA_SHARING|*_FILE)
+                continue
+                ;;
+        esac
+        printf '%s=%s\n' "${_name}" "${!_name}"
+    done | sha256sum | cut -d' ' -f1
+}
+
+function is_prebaked
+{
+    # The pre-baked plugins and conf files can only be used if nothing that went into them has changed.
+    [ -f "${prebake_marker_file}" ] && [ ! -d /conf ] && [ ! -d /plugins ] && \
+        [ "$(< "${prebake_marker_file}")" == "${1}" ]
+}
+
 # ==== CODE STARTS ====
+if [ -f "${prebake_env_file}" ]; then
+    load_prebake_environment
+fi
 debug_msg "DEBUGGING ENABLED"
+startup_phase "setup user"
 
 # If we're running as root, then run as the neo4j user. Otherwise
 # docker is running with --user and we simply use that user.  Note
@@ -389,15 +1117,11 @@ readonly neo4j_admin_cmd
 
 # Need to chown the home directory
 if running_as_root; then
-    debug_msg "chowning ${NEO4J_HOME} recursively to ${userid}":"${groupid}"
-    chown -R "${userid}":"${groupid}" "${NEO4J_HOME}"
-    chmod 700 "${NEO4J_HOME}"
-    find "${NEO4J_HOME}" -mindepth 1 -maxdepth 1 -type d -exec chmod -R 700 {} \;
-    debug_msg "Setting all files in ${NEO4J_HOME}/conf to permissions 600"
-    find "${NEO4J_HOME}"/conf -type f -exec chmod -R 600 {} \;
+    fix_neo4j_home_permissions
 fi
 
 ## == EXTRACT SECRETS FROM FILES ===
+startup_phase "extract secrets"
 # These environment variables are set by using docker secrets and they override their equivalent env vars
 # They are suffixed with _FILE and prefixed by the name of the env var they should override
 # e.g. NEO4J_AUTH_FILE will override the value of the NEO4J_AUTH
@@ -426,6 +1150,7 @@ for variable_name in $(printenv | awk -F= '{print $1}'); do
 done
 
 # ==== CHECK LICENSE AGREEMENT ====
+startup_phase "check license agreement"
 
 # Only prompt for license agreement if command contains "neo4j" in it
 if [[ "${cmd}" == *"neo4j"* ]]; then
@@ -474,6 +1199,7 @@ The old name will still work, but is likely to be deprecated in future releases.
 fi
 
 # ==== CHECK FILE PERMISSIONS ON MOUNTED FOLDERS ====
+startup_phase "check file permissions"
 
 
 if [ -d /conf ]; then
@@ -518,6 +1244,10 @@ if [ -d /logs ]; then
     : ${NEO4J_server_directories_logs:="/logs"}
 fi
 
+if [ "${NEO4J_EPHEMERAL:-false}" == "true" ]; then
+    setup_ephemeral_data_directory
+fi
+
 if [ -d /data ]; then
     check_mounted_folder_writable_with_chown "/data"
     if [ -d /data/databases ]; then
@@ -538,13 +1268,24 @@ fi
 
 
 # ==== LOAD PLUGINS ====
+startup_phase "load plugins"
+
+prebake_fingerprint="$(get_prebake_fingerprint)"
+prebaked="false"
+if [ "${cmd}" != "prebake" ] && is_prebaked "${prebake_fingerprint}"; then
+    prebaked="true"
+    echo "Using the plugins and configuration pre-baked into this image."
+elif [ -f "${prebake_marker_file}" ]; then
+    echo "The environment or mounted folders differ from when this image was pre-baked, so plugins and configuration are applied again."
+fi
 
-if [[ -n "${NEO4J_PLUGINS:-}" ]]; then
+if [[ -n "${NEO4J_PLUGINS:-}" ]] && [ "${prebaked}" != "true" ]; then
   # NEO4J_PLUGINS should be a json array of plugins like '["graph-algorithms", "apoc", "streams", "graphql"]'
   install_neo4j_plugins
 fi
 
 # ==== RENAME LEGACY ENVIRONMENT CONF VARIABLES ====
+startup_phase "set configurations"
 
 # Env variable naming convention:
 # - prefix NEO4J_
@@ -571,30 +1312,67 @@ fi
 ## == DOCKER SPECIFIC DEFAULT CONFIGURATIONS ===
 ## these should not override *any* configurations set by the user
 
+# Settings are collected into conf_settings and written to the conf files in one go.
+conf_settings=()
 debug_msg "Setting docker specific configuration overrides"
-add_docker_default_to_conf "server.memory.pagecache.size" "512M"
-add_docker_default_to_conf "server.default_listen_address" "0.0.0.0"
+# Automatic memory sizing and the advertised addresses depend on the container, so they are not pre-baked.
+if [ "${cmd}" == "prebake" ] && [ "${NEO4J_AUTO_MEMORY:-false}" == "true" ]; then
+    debug_msg "Leaving automatic memory sizing until the container starts"
+elif [ "${NEO4J_AUTO_MEMORY:-false}" != "true" ] || ! queue_auto_memory_settings; then
+    queue_conf_setting default "server.memory.pagecache.size" "512M"
+fi
+queue_conf_setting default "server.default_listen_address" "0.0.0.0"
+
+case "${NEO4J_PROFILE:-}" in
+    "") ;;
+    small) apply_small_profile ;;
+    *) echo >&2 "Warning: NEO4J_PROFILE=${NEO4J_PROFILE} is not valid, it must be small." ;;
+esac
 
 # set enterprise only docker defaults
-if [ "${NEO4J_EDITION}" == "enterprise" ];
+if [ "${NEO4J_EDITION}" == "enterprise" ] && [ "${cmd}" != "prebake" ];
 then
     debug_msg "Setting docker specific Enterprise Edition overrides"
-    add_docker_default_to_conf "server.discovery.advertised_address" "$(hostname):5000"
-    add_docker_default_to_conf "server.cluster.advertised_address" "$(hostname):6000"
-    add_docker_default_to_conf "server.cluster.raft.advertised_address" "$(hostname):7000"
-    add_docker_default_to_conf "server.routing.advertised_address" "$(hostname):7688"
+    docker_hostname="$(hostname)"
+    queue_conf_setting default "server.discovery.advertised_address" "${docker_hostname}:5000"
+    queue_conf_setting default "server.cluster.advertised_address" "${docker_hostname}:6000"
+    queue_conf_setting default "server.cluster.raft.advertised_address" "${docker_hostname}:7000"
+    queue_conf_setting default "server.routing.advertised_address" "${docker_hostname}:7688"
+fi
+
+if [ -n "${NEO4J_PAGECACHE_WARMUP:-}" ]; then
+    queue_pagecache_warmup_settings
+fi
+
+if [ -n "${NEO4J_JVM_PROFILE:-}" ]; then
+    queue_jvm_profile_settings
+fi
+
+# ephemeral data is never recovered, so there is no point preallocating or keeping transaction logs.
+if [ "${NEO4J_EPHEMERAL:-false}" == "true" ]; then
+    queue_conf_setting default "db.tx_log.preallocate" "false"
+    queue_conf_setting default "db.tx_log.rotation.retention_policy" "keep_none"
+    queue_conf_setting default "db.tx_log.rotation.size" "16M"
 fi
 
 ## == ENVIRONMENT VARIABLE CONFIGURATIONS ===
 ## these override BOTH defaults and any existing values in the neo4j.conf file
 
 # these are docker control envs that have the NEO4J_ prefix but we don't want to add to the config.
-not_configs=("NEO4J_ACCEPT_LICENSE_AGREEMENT" "NEO4J_AUTH" "NEO4J_AUTH_PATH" "NEO4J_DEBUG" "NEO4J_EDITION" \
-             "NEO4J_HOME" "NEO4J_PLUGINS" "NEO4J_SHA256" "NEO4J_TARBALL" "NEO4J_DEPRECATION_WARNING")
-
+not_configs=("NEO4J_ACCEPT_LICENSE_AGREEMENT" "NEO4J_AUTH" "NEO4J_AUTH_PATH" "NEO4J_AUTH_FORCE_SET_INITIAL_PASSWORD" \
+             "NEO4J_DEBUG" "NEO4J_EDITION" "NEO4J_HOME" "NEO4J_PLUGINS" "NEO4J_SHA256" "NEO4J_TARBALL" \
+             "NEO4J_DEPRECATION_WARNING" "NEO4J_STARTUP_PROFILE" "NEO4J_AUTO_MEMORY" \
+             "NEO4J_PAGECACHE_WARMUP" "NEO4J_PAGECACHE_PREFETCH" "NEO4J_CLASS_DATA_SHARING" \
+             "NEO4J_PLUGINS_REFRESH" "NEO4J_JVM_PROFILE" "NEO4J_EPHEMERAL" "NEO4J_PROFILE")
+
+# the environment variable configurations are already in the pre-baked conf files.
+conf_env_vars=()
+if [ "${prebaked}" != "true" ]; then
+    conf_env_vars=($( printf '%s\n' "${!NEO4J_@}" | sort -rn ))
+fi
 debug_msg "Applying configuration settings that have been set using environment variables."
 # list env variables with prefix NEO4J_ and create settings from them
-for i in $( set | grep ^NEO4J_ | awk -F'=' '{print $1}' | sort -rn ); do
+for i in "${conf_env_vars[@]}"; do
     if containsElement "$i" "${not_configs[@]}"; then
         continue
     fi
@@ -604,19 +1382,29 @@ for i in $( set | grep ^NEO4J_ | awk -F'=' '{print $1}' | sort -rn ); do
         continue
     fi
 
-    setting=$(echo "${i}" | sed 's|^NEO4J_||' | sed 's|_|.|g' | sed 's|\.\.|_|g')
-    value=$(echo "${!i}")
+    setting="${i#NEO4J_}"
+    setting="${setting//_/.}"
+    setting="${setting//../_}"
+    value="${!i}"
     # Don't allow settings with no value or settings that start with a number (neo4j converts settings to env variables and you cannot have an env variable that starts with a number)
     if [[ -n ${value} ]]; then
         if [[ ! "${setting}" =~ ^[0-9]+.*$ ]]; then
-            add_env_setting_to_conf "${setting}" "${value}"
+            queue_conf_setting env "${setting}" "${value}"
         else
             echo >&2 "WARNING: ${setting} not written to conf file. Settings that start with a number are not permitted."
         fi
     fi
 done
+render_settings_to_conf "${conf_settings[@]}"
+
+if [ "${cmd}" == "prebake" ]; then
+    echo "${prebake_fingerprint}" > "${prebake_marker_file}"
+    echo "Pre-baked plugins into ${NEO4J_HOME}/plugins and configuration into ${NEO4J_HOME}/conf."
+    exit 0
+fi
 
 # ==== SET PASSWORD ====
+startup_phase "set password"
 
 if [[ -n "${NEO4J_AUTH_PATH:-}" ]]; then
     # Validate the existence of the password file
@@ -641,7 +1429,15 @@ then
   rm "${NEO4J_HOME}"/run/neo4j.pid
 fi
 
+# ==== PREFETCH STORE FILES ====
+startup_phase "prefetch store files"
+
+if [ "${cmd}" == "neo4j" ] && [ "${NEO4J_PAGECACHE_PREFETCH:-false}" == "true" ]; then
+    prefetch_store_files
+fi
+
 # ==== INVOKE NEO4J STARTUP ====
+startup_phase "get neo4j run command"
 
 [ -f "${EXTENSION_SCRIPT:-}" ] && . ${EXTENSION_SCRIPT}
 
@@ -653,6 +1449,7 @@ if [ "${cmd}" == "dump-config" ]; then
     check_mounted_folder_writable_with_chown "/conf"
     cp --recursive "${NEO4J_HOME}"/conf/* /conf
     echo "Config Dumped"
+    write_startup_profile
     exit 0
 fi
 
@@ -674,14 +1471,176 @@ function get_neo4j_run_cmd {
     fi
 }
 
+# The output of neo4j console --dry-run only depends on the neo4j installation, the conf files and a handful of
+# environment variables, so we can cache it between container restarts and skip starting an extra JVM.
+neo4j_run_cmd_cache="${ENTRYPOINT_CACHE_DIR}/neo4j-run-cmd"
+
+function get_neo4j_run_cmd_cache_key
+{
+    local _conf_files=()
+    local _file
+    for _file in "${NEO4J_HOME}"/conf/*; do
+        [ -f "${_file}" ] && _conf_files+=("${_file}")
+    done
+    {
+        # NEO4J_SHA256 identifies the neo4j version and edition installed in the image
+        echo "${NEO4J_SHA256:-}:${userid}:${groupid}"
+        echo "${JAVA_HOME:-}:${JAVA_CMD:-}:${JAVA_OPTS:-}:${HEAP_SIZE:-}:${NEO4J_CONF:-}"
+        if [ "${#_conf_files[@]}" -gt 0 ]; then
+            cat "${_conf_files[@]}"
+        fi
+    } | sha256sum | cut -d' ' -f1
+}
+
+function is_neo4j_run_cmd
+{
+    # The run command gets evaluated, so only accept one that starts the java in this image with a neo4j entry point
+    # and has nothing in it that the shell would run as a separate command.
+    local _neo4j_run_cmd="${1}"
+    local _java="${_neo4j_run_cmd%% *}"
+    _java="${_java//[\"\']/}"
+
+    [[ "${_neo4j_run_cmd}" =~ [[:space:]]\"?(org|com)\.neo4j\.server\.[A-Za-z0-9.]*EntryPoint\"?([[:space:]]|$) ]] && \
+        [[ "${_neo4j_run_cmd}" != *[\;\&\|\`\<\>]* ]] && \
+        [[ "${_neo4j_run_cmd}" != *'$('* ]] && \
+        [ "${_java##*/}" == "java" ] && [ -x "${_java}" ]
+}
+
+function read_cached_neo4j_run_cmd
+{
+    local _cache_key="${1}"
+    local _cached=()
+
+    # when running as root the cached command is evaluated as root, so only trust a cache that root wrote.
+    if [ ! -f "${neo4j_run_cmd_cache}" ] || [ ! -O "${neo4j_run_cmd_cache}" ]; then
+        return 1
+    fi
+    mapfile -t _cached < "${neo4j_run_cmd_cache}"
+    if [ "${#_cached[@]}" -ne 2 ] || [ "${_cached[0]}" != "${_cache_key}" ]; then
+        return 1
+    fi
+    if ! is_neo4j_run_cmd "${_cached[1]}"; then
+        debug_msg "Ignoring the neo4j run command cached in ${neo4j_run_cmd_cache}, it does not look like one"
+        return 1
+    fi
+    echo "${_cached[1]}"
+}
+
+function write_cached_neo4j_run_cmd
+{
+    local _cache_key="${1}"
+    local _neo4j_run_cmd="${2}"
+
+    if printf '%s\n%s\n' "${_cache_key}" "${_neo4j_run_cmd}" | write_entrypoint_cache_file "${neo4j_run_cmd_cache}"; then
+        debug_msg "Cached neo4j run command to ${neo4j_run_cmd_cache}"
+    else
+        debug_msg "Could not cache neo4j run command to ${neo4j_run_cmd_cache}"
+    fi
+}
+
+# With NEO4J_CLASS_DATA_SHARING=true, neo4j records the classes it loads in a class list while it runs. The next start
+# turns that list into a class data sharing archive, in a separate JVM with a small heap that runs in the background
+# next to neo4j, and the starts after that load their classes from the archive. Nothing is written when neo4j stops,
+# so the archive adds no work to shutting down.
+# The archive is kept for as long as the java installation, the run command and the plugins stay the same.
+cds_archive_dir="${ENTRYPOINT_CACHE_DIR}/cds"
+cds_dump_java_opts=(-Xmx256m -XX:TieredStopAtLevel=1 -XX:CICompilerCount=2)
+
+function create_cds_archive
+{
+    local _neo4j_run_cmd="${1}"
+    local _class_list="${2}"
+    local _archive="${3}"
+    local _run_cmd_args=() _classpath="" _run_as=() _i
+
+    # the archive is only valid for the classpath it was made with, so it is made with the classpath of the server.
+    eval "_run_cmd_args=(${_neo4j_run_cmd})"
+    for (( _i = 1; _i < ${#_run_cmd_args[@]} - 1; _i++ )); do
+        case "${_run_cmd_args[_i]}" in
+            -cp|-classpath|--class-path) _classpath="${_run_cmd_args[_i + 1]}" ;;
+        esac
+    done
+    if running_as_root; then
+        _run_as=(su-exec "${userid}":"${groupid}")
+    fi
+    # the archive is only moved into place once a JVM has started with it, so a start never picks up a broken archive.
+    # the default heap of a quarter of the memory would compete with the server starting next to it.
+    if nice -n 19 "${_run_as[@]}" "${_run_cmd_args[0]}" "${cds_dump_java_opts[@]}" -Xshare:dump \
+                -XX:SharedClassListFile="${_class_list}" -XX:SharedArchiveFile="${_archive}.tmp" -cp "${_classpath}" && \
+        "${_run_as[@]}" "${_run_cmd_args[0]}" "${cds_dump_java_opts[@]}" -Xshare:on -XX:SharedArchiveFile="${_archive}.tmp" \
+                -cp "${_classpath}" -version
+    then
+        mv -f "${_archive}.tmp" "${_archive}"
+    else
+        # record the classes again on the next start
+        rm -f "${_archive}.tmp" "${_class_list}"
+    fi
+}
+
+function add_cds_archive_options
+{
+    local _java _archive_key _archive _class_list
+
+    _java="$(readlink -f "$(command -v java)")"
+    _archive_key="$( {
+        cat "${_java%/bin/java}/release" 2>/dev/null
+        echo "${neo4j_console_cmd}"
+        find -L "${NEO4J_HOME}"/plugins /plugins -name '*.jar' -printf '%p %s %T@\n' 2>/dev/null | sort
+    } | sha256sum | cut -c1-16)"
+    _archive="${cds_archive_dir}/neo4j-${_archive_key}.jsa"
+    _class_list="${cds_archive_dir}/neo4j-${_archive_key}.classlist"
+
+    if ! { create_entrypoint_cache_dir && mkdir -p "${cds_archive_dir}"; } 2>/dev/null; then
+        debug_msg "Could not create ${cds_archive_dir}, so neo4j will not use class data sharing"
+        return 0
+    fi
+    # neo4j itself writes the class list
+    if running_as_root; then
+        chown "${userid}":"${groupid}" "${cds_archive_dir}"
+    fi
+    # jvm options go straight after the java executable
+    if [ -f "${_archive}" ]; then
+        debug_msg "Using class data sharing archive ${_archive}"
+        neo4j_console_cmd="${neo4j_console_cmd%% *} -XX:SharedArchiveFile=${_archive} ${neo4j_console_cmd#* }"
+        return 0
+    fi
+    # anything else in the folder was made for another java installation, run command or set of plugins
+    find "${cds_archive_dir}" -mindepth 1 ! -name "neo4j-${_archive_key}.*" -delete 2>/dev/null || true
+    if [ -s "${_class_list}" ]; then
+        debug_msg "Creating class data sharing archive ${_archive} in the background"
+        # start it from a subshell that exits straight away, so the job is handed to tini, which reaps it.
+        # Neo4j replaces this shell and would never wait for it.
+        ( create_cds_archive "${neo4j_console_cmd}" "${_class_list}" "${_archive}" > /dev/null 2>&1 & )
+    else
+        debug_msg "Neo4j will record the classes it loads in ${_class_list}"
+        neo4j_console_cmd="${neo4j_console_cmd%% *} -XX:DumpLoadedClassList=${_class_list} ${neo4j_console_cmd#* }"
+    fi
+}
+
 if [ "${cmd}" == "neo4j" ]; then
     # separate declaration and use of get_neo4j_run_cmd so that error codes are correctly surfaced
     debug_msg "getting full neo4j run command"
-    neo4j_console_cmd="$(get_neo4j_run_cmd)"
+    if [ "${EXTENDED_CONF+"yes"}" == "yes" ]; then
+        # commands in the conf can produce a different run command every time, so it can't be cached.
+        neo4j_console_cmd="$(get_neo4j_run_cmd)"
+    else
+        neo4j_run_cmd_cache_key="$(get_neo4j_run_cmd_cache_key)"
+        if neo4j_console_cmd="$(read_cached_neo4j_run_cmd "${neo4j_run_cmd_cache_key}")"; then
+            debug_msg "Using neo4j run command cached in ${neo4j_run_cmd_cache}"
+        else
+            neo4j_console_cmd="$(get_neo4j_run_cmd)"
+            write_cached_neo4j_run_cmd "${neo4j_run_cmd_cache_key}" "${neo4j_console_cmd}"
+        fi
+    fi
+    if [ "${NEO4J_CLASS_DATA_SHARING:-false}" == "true" ]; then
+        add_cds_archive_options
+    fi
     debug_msg "${exec_cmd} ${neo4j_console_cmd}"
+    write_startup_profile
     #%%DEPRECATION_WARNING_PLACEHOLDER%%
     eval ${exec_cmd} ${neo4j_console_cmd?:No Neo4j command was generated}
 else
+    write_startup_profile
     debug_msg "${exec_cmd}" "$@"
     ${exec_cmd} "$@"
 fi
@@ -0,0 +1,81 @@
+#!/bin/bash
+
+# Checkpoints the databases on this server while it is still serving, so that the final checkpoint when neo4j is
+# stopped has little left to flush, and finishes well within the stop timeout.
+# Run it just before the container is stopped, for example as a kubernetes preStop hook:
+#     lifecycle:
+#       preStop:
+#         exec:
+#           command: ["neo4j-prestop"]
+# The credentials are taken from NEO4J_PRESTOP_AUTH, or from NEO4J_AUTH, in the form <user>/<password>.
+# It does not transfer raft leadership away from this server in a cluster. That is left to neo4j, which hands over
+# leadership of the databases it leads while it shuts down.
+# It logs how long it took until it hands over to the stop signal. The stop itself happens after the hook has exited,
+# so it is not measured here. neo4j logs its own shutdown.
+
+# load useful utility functions
+. /startup/utilities.sh
+
+function get_local_databases
+{
+    # The databases hosted by this server are the ones with a store in the data directory.
+    local _data_dir _database
+    _data_dir="$(get_neo4j_conf_setting server.directories.data "${NEO4J_HOME}/data")"
+    case "${_data_dir}" in
+        /*) ;;
+        *) _data_dir="${NEO4J_HOME}/${_data_dir}" ;;
+    esac
+    for _database in "${_data_dir}"/databases/*/; do
+        [ -d "${_database}" ] && basename "${_database}"
+    done
+}
+
+function checkpoint_databases
+{
+    # Checkpoints all the given databases with a single cypher-shell, so that only one JVM is started.
+    local _credentials="${NEO4J_PRESTOP_AUTH:-${NEO4J_AUTH:-}}"
+    local _bolt _database
+    local _cypher_shell_args=("--non-interactive" "--fail-at-end" "--format" "plain")
+    _bolt=($(get_connector_probe_address bolt 7687))
+    _cypher_shell_args+=("--address" "bolt://${_bolt[0]}:${_bolt[1]}")
+    if [[ "${_credentials}" == */* ]]; then
+        _cypher_shell_args+=("--username" "${_credentials%%/*}" "--password" "${_credentials#*/}")
+    fi
+    for _database in "${@}"; do
+        printf ':use `%s`\nCALL db.checkpoint();\n' "${_database}"
+    done | cypher-shell "${_cypher_shell_args[@]}"
+}
+
+function checkpoint_phase
+{
+    # Checkpoints the databases, and logs how long it took.
+    local _phase="${1}"
+    shift
+    local _start_ms="$(monotonic_time_ms)"
+    local _result="succeeded"
+    if ! checkpoint_databases "${@}" > /dev/null; then
+        _result="failed for some databases"
+        prestop_exit_code=1
+    fi
+    echo "${_phase} ${_result} in $(( $(monotonic_time_ms) - _start_ms ))ms."
+}
+
+# the output of a pre-stop hook is not kept, so it goes to the container log as well, if we are allowed to write to it.
+if { true > /proc/1/fd/1; } 2>/dev/null; then
+    exec > >(tee /proc/1/fd/1)
+fi
+
+prestop_start_ms="$(monotonic_time_ms)"
+databases=($(get_local_databases))
+if [ "${#databases[@]}" -eq 0 ]; then
+    echo "No databases to checkpoint."
+    exit 0
+fi
+prestop_exit_code=0
+
+echo "Checkpointing ${databases[*]} before neo4j is stopped."
+# This flushes everything that was dirty in the page cache while neo4j is still serving, so the checkpoint on stop
+# only has to flush what is written after it.
+checkpoint_phase "Checkpoint while serving" "${databases[@]}"
+echo "Pre-stop finished in $(( $(monotonic_time_ms) - prestop_start_ms ))ms, neo4j can be stopped now."
+exit ${prestop_exit_code}
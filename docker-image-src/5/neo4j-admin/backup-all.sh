@@ -0,0 +1,185 @@
+#!/bin/bash -u
+set -o pipefail
+
+# Backs up all the databases of a neo4j server concurrently, instead of one at a time.
+#
+# backup-all --from=<host:port> --to-path=<folder> [<other neo4j-admin database backup options>]
+#
+# The databases are listed with SHOW DATABASES over bolt, on the host given by --from and port 7687, unless
+# NEO4J_BACKUP_BOLT_ADDRESS gives another <host:port>. The credentials are taken from NEO4J_BACKUP_AUTH, or from
+# NEO4J_AUTH, in the form <user>/<password>. Set NEO4J_BACKUP_DATABASES to a space separated list of databases
+# to back up those instead.
+# At most NEO4J_BACKUP_PARALLELISM backups run at the same time, 4 by default.
+# If NEO4J_BACKUP_RESULTS_FILE is set, a line with the database, exit code, duration in ms and bytes written
+# is written there for each database.
+# If NEO4J_BACKUP_CDS_ARCHIVE is set, neo4j-admin archives the classes it loads there once, and uses that
+# class data sharing archive to start faster from then on.
+#
+# Exits with 0 only if every backup succeeded.
+
+# load useful utility functions
+. /startup/utilities.sh
+
+function usage
+{
+    echo >&2 "USAGE: backup-all --from=<host:port> --to-path=<folder> [<neo4j-admin database backup options>]"
+    exit 1
+}
+
+function list_databases
+{
+    # Every database hosted by the server can be backed up, except composite databases which have no store.
+    local _credentials="${NEO4J_BACKUP_AUTH:-${NEO4J_AUTH:-}}"
+    local _bolt="${NEO4J_BACKUP_BOLT_ADDRESS:-${from_address%%,*}}"
+    local _cypher_shell_args=("--non-interactive" "--format" "plain" "--database" "system")
+    if [ -z "${NEO4J_BACKUP_BOLT_ADDRESS:-}" ]; then
+        _bolt="${_bolt%:*}:7687"
+    fi
+    _cypher_shell_args+=("--address" "bolt://${_bolt}")
+    if [[ "${_credentials}" == */* ]]; then
+        _cypher_shell_args+=("--username" "${_credentials%%/*}" "--password" "${_credentials#*/}")
+    fi
+    cypher-shell "${_cypher_shell_args[@]}" \
+        "SHOW DATABASES YIELD name, type WHERE type <> 'composite' RETURN DISTINCT name ORDER BY name" \
+        | tail -n +2 | tr -d '"'
+}
+
+function backup_size
+{
+    # the size of the backup files written for a database since the backups started. Backup files are named
+    # <database>-<yyyy-mm-dd>T<hh-mm-ss>.backup, so that the backups of a database called neo4j-foo are not counted as neo4j.
+    local _database="${1}"
+    local _size=0 _file_size
+    while read -r _file_size; do
+        _size=$(( _size + _file_size ))
+    done < <(find "${to_path}" -maxdepth 1 -type f -name "${_database}-[0-9][0-9][0-9][0-9]-[0-9][0-9]-[0-9][0-9]T*.backup" \
+                  -newer "${results_dir}/started" -printf '%s\n')
+    echo "${_size}"
+}
+
+function get_cds_java_opts
+{
+    # The first backup to claim the archive writes it when its JVM exits, the others don't share an unfinished archive.
+    # It is written to a temporary name, and only moved into place once neo4j-admin has exited cleanly.
+    local _archive="${NEO4J_BACKUP_CDS_ARCHIVE:-}"
+    if [ -z "${_archive}" ]; then
+        return
+    elif [ -s "${_archive}" ]; then
+        echo "-XX:SharedArchiveFile=${_archive}"
+    elif mkdir "${_archive}.lock" 2>/dev/null; then
+        echo "-XX:ArchiveClassesAtExit=${_archive}.tmp"
+    fi
+}
+
+function backup_database
+{
+    # Backs up one database, prefixing each line of its output with the database name,
+    # and records how it went in the results folder.
+    local _database="${1}"
+    local _start_ms _exit_code _cds_java_opts _java_opts
+    local _backup_env=()
+    _cds_java_opts="$(get_cds_java_opts)"
+    # JAVA_OPTS takes precedence over HEAP_SIZE in neo4j-admin, so a HEAP_SIZE the user gave goes into JAVA_OPTS too.
+    if [ -n "${_cds_java_opts}" ]; then
+        _java_opts="${JAVA_OPTS:-${HEAP_SIZE:+-Xmx${HEAP_SIZE}}}"
+        _backup_env=("JAVA_OPTS=${_java_opts:+${_java_opts} }${_cds_java_opts}")
+    fi
+    _start_ms="$(monotonic_time_ms)"
+    env "${_backup_env[@]}" neo4j-admin database backup "${backup_args[@]}" "${_database}" 2>&1 | \
+        while IFS= read -r line; do echo "[${_database}] ${line}"; done
+    _exit_code=${PIPESTATUS[0]}
+    if [[ "${_cds_java_opts}" == -XX:ArchiveClassesAtExit=* ]]; then
+        if [ "${_exit_code}" -eq 0 ] && [ -s "${NEO4J_BACKUP_CDS_ARCHIVE}.tmp" ]; then
+            mv -f "${NEO4J_BACKUP_CDS_ARCHIVE}.tmp" "${NEO4J_BACKUP_CDS_ARCHIVE}"
+        else
+            rm -f "${NEO4J_BACKUP_CDS_ARCHIVE}.tmp"
+        fi
+    fi
+    echo "${_exit_code} $(( $(monotonic_time_ms) - _start_ms )) $(backup_size "${_database}")" \
+        > "${results_dir}/${_database}.result"
+}
+
+function print_summary
+{
+    local _database _exit_code _duration_ms _size _status _throughput
+    local _failed=0
+    echo "Backup summary:"
+    for _database in "${databases[@]}"; do
+        read -r _exit_code _duration_ms _size < "${results_dir}/${_database}.result"
+        if [ -n "${NEO4J_BACKUP_RESULTS_FILE:-}" ]; then
+            echo "${_database} ${_exit_code} ${_duration_ms} ${_size}" >> "${NEO4J_BACKUP_RESULTS_FILE}"
+        fi
+        _status="succeeded"
+        if [ "${_exit_code}" -ne 0 ]; then
+            _status="FAILED (exit code ${_exit_code})"
+            _failed=$(( _failed + 1 ))
+        fi
+        _throughput="$(format_bytes $(( _size * 1000 / (_duration_ms > 0 ? _duration_ms : 1) )))/s"
+        printf '    %-30s %-24s %8sms %10s %12s\n' "${_database}" "${_status}" "${_duration_ms}" \
+            "$(format_bytes "${_size}")" "${_throughput}"
+    done
+    if [ "${_failed}" -gt 0 ]; then
+        echo "${_failed} of ${#databases[@]} database backups failed."
+        return 1
+    fi
+    echo "All ${#databases[@]} database backups succeeded."
+}
+
+## ==========================================
+## get and sanitise script inputs
+
+from_address=""
+to_path=""
+backup_args=("${@}")
+while [ $# -gt 0 ]; do
+    case "${1}" in
+        --from=*) from_address="${1#*=}" ;;
+        --from) from_address="${2:-}"; shift ;;
+        --to-path=*) to_path="${1#*=}" ;;
+        --to-path) to_path="${2:-}"; shift ;;
+    esac
+    shift
+done
+if [ -z "${from_address}" ] || [ -z "${to_path}" ]; then
+    usage
+fi
+parallelism="${NEO4J_BACKUP_PARALLELISM:-4}"
+if ! [[ "${parallelism}" =~ ^[1-9][0-9]*$ ]]; then
+    echo >&2 "NEO4J_BACKUP_PARALLELISM must be a positive number, but was '${parallelism}'."
+    exit 1
+fi
+
+if [ -n "${NEO4J_BACKUP_DATABASES:-}" ]; then
+    databases=(${NEO4J_BACKUP_DATABASES//,/ })
+elif ! databases=($(list_databases)); then
+    echo >&2 "Could not list the databases on ${from_address}. Set NEO4J_BACKUP_AUTH to the credentials for the server, or set NEO4J_BACKUP_DATABASES."
+    exit 1
+fi
+if [ "${#databases[@]}" -eq 0 ]; then
+    echo >&2 "There are no databases to back up."
+    exit 1
+fi
+
+## ==========================================
+## back up the databases, at most ${parallelism} at a time
+
+results_dir="$(mktemp -d)"
+trap 'rm -rf "${results_dir}"' EXIT
+touch "${results_dir}/started"
+if [ -n "${NEO4J_BACKUP_RESULTS_FILE:-}" ]; then
+    true > "${NEO4J_BACKUP_RESULTS_FILE}"
+fi
+if [ -n "${NEO4J_BACKUP_CDS_ARCHIVE:-}" ]; then
+    rm -rf "${NEO4J_BACKUP_CDS_ARCHIVE}.lock"
+fi
+
+echo "Backing up ${databases[*]} from ${from_address}, ${parallelism} at a time."
+for database in "${databases[@]}"; do
+    while [ "$(jobs -rp | wc -l)" -ge "${parallelism}" ]; do
+        wait -n
+    done
+    backup_database "${database}" &
+done
+wait
+
+print_summary
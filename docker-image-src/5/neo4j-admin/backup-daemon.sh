@@ -0,0 +1,231 @@
+#!/bin/bash -u
+set -o pipefail
+
+# Keeps backing up all the databases of a neo4j server on a schedule, with backup-all.
+#
+# backup-daemon --from=<host:port> --to-path=<folder> [<other neo4j-admin database backup options>]
+#
+# NEO4J_BACKUP_INTERVAL          time between the start of two backups, 1h by default.
+# NEO4J_BACKUP_FULL_INTERVAL     time between full backups, 7d by default. The backups in between are differential,
+#                                so they only copy what changed since the previous backup.
+# NEO4J_BACKUP_KEEP_FULL         number of full backups to keep, together with the differential backups that
+#                                depend on them, 2 by default. Older backups are deleted.
+# NEO4J_BACKUP_AGGREGATE         true to aggregate the backup chain of each database into a single backup, so that
+#                                a restore does not have to apply a long chain of differential backups. false by default.
+# NEO4J_BACKUP_AGGREGATE_EVERY   number of differential backups of a database between two aggregations of its backup
+#                                chain, 24 by default.
+# NEO4J_BACKUP_METRICS_FILE      prometheus text format file with the duration, bytes and lag of the last backups,
+#                                <to-path>/backup-metrics.prom by default.
+# Times are a number followed by s, m, h or d.
+# A --type option overrides the schedule for every backup. With --type=FULL every backup counts as a full backup,
+# for the schedule and for deciding which backups to keep.
+# Listing the databases and parallelism are configured as for backup-all.
+
+# load useful utility functions
+. /startup/utilities.sh
+
+function usage
+{
+    echo >&2 "USAGE: backup-daemon --from=<host:port> --to-path=<folder> [<neo4j-admin database backup options>]"
+    exit 1
+}
+
+function to_seconds
+{
+    local _name="${1}"
+    local _value="${2}"
+    if ! [[ "${_value}" =~ ^([0-9]+)([smhd])$ ]]; then
+        echo >&2 "${_name} must be a number followed by s, m, h or d, but was '${_value}'."
+        exit 1
+    fi
+    case "${BASH_REMATCH[2]}" in
+        s) echo $(( BASH_REMATCH[1] )) ;;
+        m) echo $(( BASH_REMATCH[1] * 60 )) ;;
+        h) echo $(( BASH_REMATCH[1] * 3600 )) ;;
+        d) echo $(( BASH_REMATCH[1] * 86400 )) ;;
+    esac
+}
+
+function full_backup_due
+{
+    local _last_full
+    _last_full="$(find "${state_dir}" -maxdepth 1 -name 'full-*' -printf '%f\n' | sort -t- -k2 -n | tail -n 1)"
+    [ -z "${_last_full}" ] || [ $(( $(date +%s) - ${_last_full#full-} )) -ge "${full_interval}" ]
+}
+
+function prune_backups
+{
+    # Backups that are older than the oldest full backup we keep are no longer needed to restore from any full backup
+    # we keep, so they can go, together with the records of the older full backups.
+    local _full_backups=()
+    mapfile -t _full_backups < <(find "${state_dir}" -maxdepth 1 -name 'full-*' -printf '%f\n' | sort -t- -k2 -n -r)
+    if [ "${#_full_backups[@]}" -le "${keep_full}" ]; then
+        return
+    fi
+    local _oldest_kept="${state_dir}/${_full_backups[$(( keep_full - 1 ))]}"
+    echo "Deleting backups from before the last ${keep_full} full backups."
+    find "${to_path}" -maxdepth 1 -type f -name '*.backup' ! -newer "${_oldest_kept}" -print -delete
+    for _full_backup in "${_full_backups[@]:${keep_full}}"; do
+        rm -f "${state_dir}/${_full_backup}"
+    done
+}
+
+function aggregate_backups
+{
+    # Collapses the backup chain of each database into one backup, once NEO4J_BACKUP_AGGREGATE_EVERY differential
+    # backups of it have been made since its last full backup or aggregation.
+    local _database _start_ms _differentials
+    for _database in "${@}"; do
+        _differentials=$(( $(cat "${state_dir}/differentials-${_database}" 2>/dev/null || echo 0) + 1 ))
+        echo "${_differentials}" > "${state_dir}/differentials-${_database}"
+        if [ "${_differentials}" -lt "${aggregate_every}" ]; then
+            continue
+        fi
+        _start_ms="$(monotonic_time_ms)"
+        if neo4j-admin database aggregate-backup --from-path="${to_path}" "${_database}" 2>&1 | \
+            while IFS= read -r line; do echo "[${_database}] ${line}"; done
+        then
+            echo "Aggregated the backup chain of ${_database} in $(( $(monotonic_time_ms) - _start_ms ))ms."
+            rm -f "${state_dir}/differentials-${_database}"
+        else
+            # tried again after the next differential backup
+            echo "Could not aggregate the backup chain of ${_database}, a restore will apply the whole chain."
+        fi
+    done
+}
+
+function write_metrics
+{
+    # Written to a temporary file and moved into place, so that a scraper never reads a half written file.
+    local _now _database _exit_code _duration_ms _size _last_success
+    _now="$(date +%s)"
+    {
+        echo "# HELP neo4j_backup_last_duration_seconds Duration of the last backup of the database."
+        echo "# TYPE neo4j_backup_last_duration_seconds gauge"
+        echo "# HELP neo4j_backup_last_bytes Bytes written by the last backup of the database."
+        echo "# TYPE neo4j_backup_last_bytes gauge"
+        echo "# HELP neo4j_backup_last_success Whether the last backup of the database succeeded."
+        echo "# TYPE neo4j_backup_last_success gauge"
+        echo "# HELP neo4j_backup_last_success_timestamp_seconds When the last successful backup of the database finished."
+        echo "# TYPE neo4j_backup_last_success_timestamp_seconds gauge"
+        echo "# HELP neo4j_backup_lag_seconds Time since the last successful backup of the database finished."
+        echo "# TYPE neo4j_backup_lag_seconds gauge"
+        if [ -f "${state_dir}/results" ]; then
+            while read -r _database _exit_code _duration_ms _size; do
+                _last_success="$(cat "${state_dir}/success-${_database}" 2>/dev/null || echo 0)"
+                echo "neo4j_backup_last_duration_seconds{database=\"${_database}\"} $(( _duration_ms / 1000 )).$(printf '%03d' $(( _duration_ms % 1000 )))"
+                echo "neo4j_backup_last_bytes{database=\"${_database}\"} ${_size}"
+                echo "neo4j_backup_last_success{database=\"${_database}\"} $(( _exit_code == 0 ))"
+                echo "neo4j_backup_last_success_timestamp_seconds{database=\"${_database}\"} ${_last_success}"
+                if [ "${_last_success}" -gt 0 ]; then
+                    echo "neo4j_backup_lag_seconds{database=\"${_database}\"} $(( _now - _last_success ))"
+                fi
+            done < "${state_dir}/results"
+        fi
+    } > "${metrics_file}.tmp" && mv -f "${metrics_file}.tmp" "${metrics_file}"
+}
+
+function run_backup
+{
+    local _backup_type_args=()
+    local _backup_type
+    local _database _exit_code _ _backup_exit_code
+    local _backed_up=()
+    local _started
+    _started="$(date +%s)"
+    # the user's own --type wins over the schedule
+    if [ -n "${user_backup_type}" ]; then
+        _backup_type="${user_backup_type^^}"
+    elif full_backup_due; then
+        _backup_type="FULL"
+        _backup_type_args=("--type=FULL")
+    else
+        _backup_type="DIFF"
+    fi
+    case "${_backup_type}" in
+        FULL) echo "Starting full backup." ;;
+        DIFF) echo "Starting differential backup." ;;
+        *) echo "Starting backup with --type=${_backup_type}." ;;
+    esac
+    NEO4J_BACKUP_RESULTS_FILE="${state_dir}/results" \
+    NEO4J_BACKUP_CDS_ARCHIVE="${state_dir}/neo4j-admin-${NEO4J_SHA256:-unknown}.jsa" \
+        /startup/backup-all.sh "${backup_args[@]}" "${_backup_type_args[@]}"
+    _backup_exit_code=$?
+
+    while read -r _database _exit_code _; do
+        if [ "${_exit_code}" -eq 0 ]; then
+            date +%s > "${state_dir}/success-${_database}"
+            _backed_up+=("${_database}")
+        fi
+    done < "${state_dir}/results"
+    # a full backup only starts a new chain if every database got one
+    if [ "${_backup_type}" == "FULL" ] && [ "${_backup_exit_code}" -eq 0 ]; then
+        # dated to the start of the full backup, so that pruning keeps the backups it wrote
+        touch -d "@${_started}" "${state_dir}/full-${_started}"
+        rm -f "${state_dir}"/differentials-*
+        prune_backups
+    elif [ "${aggregate}" == "true" ] && [ "${#_backed_up[@]}" -gt 0 ]; then
+        aggregate_backups "${_backed_up[@]}"
+    fi
+    write_metrics
+}
+
+## ==========================================
+## get and sanitise script inputs
+
+to_path=""
+user_backup_type=""
+backup_args=("${@}")
+while [ $# -gt 0 ]; do
+    case "${1}" in
+        --to-path=*) to_path="${1#*=}" ;;
+        --to-path) to_path="${2:-}"; shift ;;
+        --type=*) user_backup_type="${1#*=}" ;;
+        --type) user_backup_type="${2:-}"; shift ;;
+    esac
+    shift
+done
+if [ -z "${to_path}" ]; then
+    usage
+fi
+interval="$(to_seconds NEO4J_BACKUP_INTERVAL "${NEO4J_BACKUP_INTERVAL:-1h}")" || exit 1
+full_interval="$(to_seconds NEO4J_BACKUP_FULL_INTERVAL "${NEO4J_BACKUP_FULL_INTERVAL:-7d}")" || exit 1
+keep_full="${NEO4J_BACKUP_KEEP_FULL:-2}"
+if ! [[ "${keep_full}" =~ ^[1-9][0-9]*$ ]]; then
+    echo >&2 "NEO4J_BACKUP_KEEP_FULL must be a positive number, but was '${keep_full}'."
+    exit 1
+fi
+metrics_file="${NEO4J_BACKUP_METRICS_FILE:-${to_path}/backup-metrics.prom}"
+# the state is kept with the backups, so that the schedule and retention survive a restart of the container
+state_dir="${to_path}/.backup-daemon"
+mkdir -p "${state_dir}" || exit 1
+aggregate="${NEO4J_BACKUP_AGGREGATE:-false}"
+aggregate_every="${NEO4J_BACKUP_AGGREGATE_EVERY:-24}"
+if ! [[ "${aggregate_every}" =~ ^[1-9][0-9]*$ ]]; then
+    echo >&2 "NEO4J_BACKUP_AGGREGATE_EVERY must be a positive number, but was '${aggregate_every}'."
+    exit 1
+fi
+if [ "${aggregate}" == "true" ] && ! neo4j-admin database aggregate-backup --help > /dev/null 2>&1; then
+    echo >&2 "Warning: NEO4J_BACKUP_AGGREGATE is set, but this version of neo4j-admin cannot aggregate backups."
+    aggregate="false"
+fi
+
+## ==========================================
+## back up on schedule until stopped
+
+trap 'echo "Stopping backup daemon."; exit 0' TERM INT
+
+echo "Backing up every ${NEO4J_BACKUP_INTERVAL:-1h}, with a full backup every ${NEO4J_BACKUP_FULL_INTERVAL:-7d}."
+while true; do
+    next_run=$(( $(date +%s) + interval ))
+    # in the background, so that stopping the container does not wait for the backups to finish
+    run_backup &
+    wait $!
+    echo "Next backup at $(date -d "@${next_run}")."
+    # keep the lag in the metrics up to date while waiting
+    while (( (remaining = next_run - $(date +%s)) > 0 )); do
+        sleep $(( remaining < 60 ? remaining : 60 )) &
+        wait $!
+        write_metrics
+    done
+done
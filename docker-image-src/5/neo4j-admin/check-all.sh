@@ -0,0 +1,116 @@
+#!/bin/bash -u
+set -o pipefail
+
+# Checks the consistency of several databases concurrently, within the CPU and memory limits of the container.
+#
+# check-all [<other neo4j-admin database check options>]
+#
+# The databases are the ones in /data/databases, or the space separated list in NEO4J_CHECK_DATABASES.
+# At most NEO4J_CHECK_PARALLELISM checks run at the same time. By default this is one check for every 2 CPUs.
+# The CPUs and memory of the container are shared evenly between the checks that run at the same time, and each check
+# gets --threads and --max-off-heap-memory, and a heap size, for its share. Giving any of these yourself, as options
+# or with HEAP_SIZE, overrides them.
+#
+# Exits with 0 only if every database is consistent.
+
+# load useful utility functions
+. /startup/utilities.sh
+
+function list_databases
+{
+    local _database
+    for _database in /data/databases/*/; do
+        [ -d "${_database}" ] && basename "${_database}"
+    done
+}
+
+function check_database
+{
+    # Checks one database, prefixing each line of its output with the database name,
+    # and records how it went in the results folder.
+    local _database="${1}"
+    local _start_ms _exit_code _size
+    _size="$(du -sb "/data/databases/${_database}" 2>/dev/null | cut -f1)"
+    _start_ms="$(monotonic_time_ms)"
+    HEAP_SIZE="${HEAP_SIZE:-${heap_size}}" neo4j-admin database check "${check_args[@]}" "${_database}" 2>&1 | \
+        while IFS= read -r line; do echo "[${_database}] ${line}"; done
+    _exit_code=${PIPESTATUS[0]}
+    echo "${_exit_code} $(( $(monotonic_time_ms) - _start_ms )) ${_size:-0}" > "${results_dir}/${_database}.result"
+}
+
+function print_summary
+{
+    local _database _exit_code _duration_ms _size _status _throughput
+    local _failed=0
+    echo "Consistency check summary:"
+    for _database in "${databases[@]}"; do
+        read -r _exit_code _duration_ms _size < "${results_dir}/${_database}.result"
+        _status="consistent"
+        if [ "${_exit_code}" -ne 0 ]; then
+            _status="FAILED (exit code ${_exit_code})"
+            _failed=$(( _failed + 1 ))
+        fi
+        _throughput="$(format_bytes $(( _size * 1000 / (_duration_ms > 0 ? _duration_ms : 1) )))/s"
+        printf '    %-30s %-24s %8sms %10s %12s\n' "${_database}" "${_status}" "${_duration_ms}" \
+            "$(format_bytes "${_size}")" "${_throughput}"
+    done
+    if [ "${_failed}" -gt 0 ]; then
+        echo "${_failed} of ${#databases[@]} database checks failed."
+        return 1
+    fi
+    echo "All ${#databases[@]} databases are consistent."
+}
+
+## ==========================================
+## decide what to check, and how much of the container each check gets
+
+if [ -n "${NEO4J_CHECK_DATABASES:-}" ]; then
+    databases=(${NEO4J_CHECK_DATABASES//,/ })
+else
+    databases=($(list_databases))
+fi
+if [ "${#databases[@]}" -eq 0 ]; then
+    echo >&2 "There are no databases to check in /data/databases."
+    exit 1
+fi
+
+cpus="$(get_container_cpu_limit)"
+memory="$(get_available_memory)"
+parallelism="${NEO4J_CHECK_PARALLELISM:-$(( cpus / 2 > 1 ? cpus / 2 : 1 ))}"
+if ! [[ "${parallelism}" =~ ^[1-9][0-9]*$ ]]; then
+    echo >&2 "NEO4J_CHECK_PARALLELISM must be a positive number, but was '${parallelism}'."
+    exit 1
+fi
+if [ "${parallelism}" -gt "${#databases[@]}" ]; then
+    parallelism="${#databases[@]}"
+fi
+
+# Each check gets an even share of 90% of the memory, leaving the rest for the JVMs themselves.
+# A quarter of the share is heap, and half of it is off-heap memory for the check's caches.
+memory_per_check=$(( memory * 9 / 10 / parallelism ))
+heap_size="$(( memory_per_check / 4 / 1024 / 1024 ))m"
+check_args=("${@}")
+if ! containsElement "--threads" "${check_args[@]%%=*}"; then
+    check_args+=("--threads=$(( cpus / parallelism > 1 ? cpus / parallelism : 1 ))")
+fi
+if ! containsElement "--max-off-heap-memory" "${check_args[@]%%=*}"; then
+    check_args+=("--max-off-heap-memory=$(( memory_per_check / 2 / 1024 / 1024 ))m")
+fi
+
+## ==========================================
+## check the databases, at most ${parallelism} at a time
+
+results_dir="$(mktemp -d)"
+trap 'rm -rf "${results_dir}"' EXIT
+
+echo "Checking ${databases[*]}, ${parallelism} at a time, with ${cpus} CPUs and $(format_bytes "${memory}") of memory."
+echo "Each check runs with ${HEAP_SIZE:-${heap_size}} heap and ${check_args[*]}"
+for database in "${databases[@]}"; do
+    while [ "$(jobs -rp | wc -l)" -ge "${parallelism}" ]; do
+        wait -n
+    done
+    check_database "${database}" &
+done
+wait
+
+print_summary
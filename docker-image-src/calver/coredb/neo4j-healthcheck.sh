@@ -0,0 +1,165 @@
+#!/bin/bash
+
+# Checks the health of the neo4j server running in this container, without starting a JVM.
+# Apart from base64 for the readiness credentials it only uses bash builtins, so it is cheap enough to run every few seconds.
+#
+# neo4j-healthcheck liveness
+#     the neo4j process is running, and once it listens on the bolt port, it accepts connections there.
+# neo4j-healthcheck readiness
+#     neo4j can serve queries. On Enterprise Edition the http /db/<database>/cluster/available endpoint must
+#     return 200, otherwise the http and bolt ports must be reachable.
+#     The database is NEO4J_HEALTHCHECK_DATABASE, or neo4j by default. The credentials for the endpoint are taken from
+#     NEO4J_HEALTHCHECK_AUTH, or from NEO4J_AUTH, in the form <user>/<password>.
+#
+# Exits with 0 if healthy and 1 if not, as docker HEALTHCHECK expects.
+# Containers of this image that were started with another command than neo4j, such as dump-config, do not run a server,
+# so they are always healthy.
+
+# load useful utility functions
+. /startup/utilities.sh
+
+function usage
+{
+    echo >&2 "USAGE: $0 <liveness|readiness>"
+    exit 1
+}
+
+function unhealthy
+{
+    echo "${1}"
+    exit 1
+}
+
+function can_connect
+{
+    local _host="${1}"
+    local _port="${2}"
+    ( exec 3<>"/dev/tcp/${_host}/${_port}" ) 2>/dev/null
+}
+
+function http_status
+{
+    # Prints the http status code of a GET request to the given path.
+    local _host="${1}"
+    local _port="${2}"
+    local _path="${3}"
+    local _credentials="${4:-}"
+    local _auth_header="" _protocol _status
+    if [ -n "${_credentials}" ]; then
+        # credentials are given as <user>/<password>, and basic authentication needs <user>:<password>
+        _auth_header="Authorization: Basic $(printf '%s' "${_credentials/\//:}" | base64 -w0)"$'\r\n'
+    fi
+    (
+        exec 3<>"/dev/tcp/${_host}/${_port}" || exit 1
+        printf 'GET %s HTTP/1.0\r\nHost: %s\r\n%s\r\n' "${_path}" "${_host}" "${_auth_header}" >&3
+        read -r -t 10 _protocol _status _ <&3 && echo "${_status}"
+    ) 2>/dev/null
+}
+
+function started_as_neo4j_server
+{
+    # The entrypoint replaces itself with neo4j, but tini keeps the command the container was started with.
+    local _proc _i
+    local _args=()
+    for _proc in /proc/[0-9]*; do
+        mapfile -d '' -t _args 2>/dev/null < "${_proc}/cmdline" || continue
+        for (( _i = 0; _i < ${#_args[@]}; _i++ )); do
+            if [[ "${_args[_i]}" == */docker-entrypoint.sh ]]; then
+                [ "${_args[_i + 1]:-}" == "neo4j" ]
+                return
+            fi
+        done
+    done
+    # started with another entrypoint, so there is no telling what it runs
+    return 0
+}
+
+function neo4j_is_running
+{
+    # neo4j console runs the java process in the foreground, with one of the server entry points as its main class.
+    local _proc _state _arg _args
+    for _proc in /proc/[0-9]*; do
+        mapfile -d '' -t _args 2>/dev/null < "${_proc}/cmdline" || continue
+        for _arg in "${_args[@]}"; do
+            if [[ "${_arg}" == org.neo4j.server.*EntryPoint ]] || [[ "${_arg}" == com.neo4j.server.*EntryPoint ]]; then
+                read -r _ _ _state _ 2>/dev/null < "${_proc}/stat"
+                [ "${_state}" != "Z" ] && return 0
+            fi
+        done
+    done
+    return 1
+}
+
+function port_is_listening
+{
+    # Looks for a listening socket (state 0A) on the port in /proc/net/tcp and /proc/net/tcp6.
+    local _port_hex
+    printf -v _port_hex '%04X' "${1}"
+    local _table _sl _local _remote _state _
+    for _table in /proc/net/tcp /proc/net/tcp6; do
+        [ -r "${_table}" ] || continue
+        while read -r _sl _local _remote _state _; do
+            if [ "${_state}" == "0A" ] && [ "${_local##*:}" == "${_port_hex}" ]; then
+                return 0
+            fi
+        done < "${_table}"
+    done
+    return 1
+}
+
+function check_liveness
+{
+    local _bolt
+    neo4j_is_running || unhealthy "neo4j is not running"
+    _bolt=($(get_connector_probe_address bolt 7687))
+    if port_is_listening "${_bolt[1]}" && ! can_connect "${_bolt[@]}"; then
+        unhealthy "neo4j is not accepting connections on bolt port ${_bolt[1]}"
+    fi
+}
+
+function check_readiness
+{
+    local _database="${NEO4J_HEALTHCHECK_DATABASE:-neo4j}"
+    local _credentials="${NEO4J_HEALTHCHECK_AUTH:-${NEO4J_AUTH:-}}"
+    local _bolt _http _status
+    _bolt=($(get_connector_probe_address bolt 7687))
+    _http=($(get_connector_probe_address http 7474))
+
+    if [ "$(get_neo4j_conf_setting server.http.enabled true)" != "true" ]; then
+        can_connect "${_bolt[@]}" || unhealthy "neo4j is not reachable on bolt port ${_bolt[1]}"
+        return
+    fi
+    if [ "${NEO4J_EDITION}" == "enterprise" ]; then
+        if [[ "${_credentials}" != */* ]]; then
+            _credentials=""
+        fi
+        _status="$(http_status "${_http[@]}" "/db/${_database}/cluster/available" "${_credentials}")"
+        [ "${_status}" == "200" ] || \
+            unhealthy "database ${_database} is not available, /db/${_database}/cluster/available returned '${_status}'"
+    else
+        _status="$(http_status "${_http[@]}" "/")"
+        [ "${_status}" == "200" ] || unhealthy "neo4j is not reachable on http port ${_http[1]}"
+        can_connect "${_bolt[@]}" || unhealthy "neo4j is not reachable on bolt port ${_bolt[1]}"
+    fi
+}
+
+case "${1:-}" in
+    liveness|readiness)
+        if ! started_as_neo4j_server; then
+            echo "This container was not started with neo4j, so there is no server to check."
+            exit 0
+        fi
+        ;;
+esac
+case "${1:-}" in
+    liveness)
+        check_liveness
+        ;;
+    readiness)
+        check_liveness
+        check_readiness
+        ;;
+    *)
+        usage
+        ;;
+esac
@@ -0,0 +1,118 @@
+#!/bin/bash -u
+set -o pipefail
+
+# Compacts a database by copying it into a new store, which leaves out the space taken by deleted data.
+#
+# compact <database> [<other neo4j-admin database copy options>]
+#
+# The database must not be in use. It is copied next to itself in /data, the copy is checked for consistency, and
+# then the copy takes the place of the original. The original is deleted, unless NEO4J_COMPACT_KEEP_ORIGINAL=true,
+# in which case it is kept as <database>.precompact.
+# The copy gets an even share of the container memory, as heap, page cache and off-heap memory, unless these are given
+# as options or with HEAP_SIZE. neo4j-admin database copy already uses all the CPUs of the container.
+# The compacted database has a new store id, so the next backup of it is a full backup.
+
+# load useful utility functions
+. /startup/utilities.sh
+
+function usage
+{
+    echo >&2 "USAGE: compact <database> [<neo4j-admin database copy options>]"
+    exit 1
+}
+
+function store_size
+{
+    du -scb "/data/databases/${1}" "/data/transactions/${1}" 2>/dev/null | tail -n 1 | cut -f1
+}
+
+function swap_in_copy
+{
+    # Each rename is atomic. If one fails, the ones before it are undone, so the original store is complete again.
+    mv -T "/data/databases/${database}" "/data/databases/${original}" || return 1
+    if ! mv -T "/data/transactions/${database}" "/data/transactions/${original}"; then
+        mv -T "/data/databases/${original}" "/data/databases/${database}"
+        return 1
+    fi
+    if ! mv -T "/data/databases/${copy}" "/data/databases/${database}"; then
+        mv -T "/data/databases/${original}" "/data/databases/${database}"
+        mv -T "/data/transactions/${original}" "/data/transactions/${database}"
+        return 1
+    fi
+    if ! mv -T "/data/transactions/${copy}" "/data/transactions/${database}"; then
+        mv -T "/data/databases/${database}" "/data/databases/${copy}"
+        mv -T "/data/databases/${original}" "/data/databases/${database}"
+        mv -T "/data/transactions/${original}" "/data/transactions/${database}"
+        return 1
+    fi
+}
+
+## ==========================================
+## get and sanitise script inputs
+
+if [ $# -lt 1 ] || [[ "${1}" == -* ]]; then
+    usage
+fi
+database="${1}"
+shift
+copy="${database}.compacting"
+original="${database}.precompact"
+if [ "${database}" == "system" ]; then
+    echo >&2 "The system database cannot be compacted."
+    exit 1
+fi
+if [ ! -d "/data/databases/${database}" ]; then
+    echo >&2 "There is no database ${database} in /data/databases."
+    exit 1
+fi
+for leftover in "/data/databases/${copy}" "/data/transactions/${copy}" \
+                "/data/databases/${original}" "/data/transactions/${original}"; do
+    if [ -e "${leftover}" ]; then
+        echo >&2 "${leftover} is left from an earlier compaction of ${database}. Remove it to compact ${database} again."
+        exit 1
+    fi
+done
+
+# The copy gets 90% of the memory, with a quarter of it for heap, a quarter for page cache to read the original,
+# and half off-heap for the new store.
+memory_budget=$(( $(get_available_memory) * 9 / 10 / 1024 / 1024 ))
+heap_size="$(( memory_budget / 4 ))m"
+copy_args=("${@}")
+if ! containsElement "--from-pagecache" "${copy_args[@]%%=*}"; then
+    copy_args+=("--from-pagecache=$(( memory_budget / 4 ))m")
+fi
+if ! containsElement "--max-off-heap-memory" "${copy_args[@]%%=*}"; then
+    copy_args+=("--max-off-heap-memory=$(( memory_budget / 2 ))m")
+fi
+
+## ==========================================
+## copy, check, swap
+
+size_before="$(store_size "${database}")"
+echo "Copying ${database} to ${copy} with ${HEAP_SIZE:-${heap_size}} heap and ${copy_args[*]}"
+start_ms="$(monotonic_time_ms)"
+if ! HEAP_SIZE="${HEAP_SIZE:-${heap_size}}" neo4j-admin database copy "${copy_args[@]}" "${database}" "${copy}"; then
+    echo >&2 "Copying ${database} failed, so ${database} was not changed."
+    rm -rf "/data/databases/${copy}" "/data/transactions/${copy}"
+    exit 1
+fi
+echo "Copied ${database} in $(( $(monotonic_time_ms) - start_ms ))ms."
+
+if ! NEO4J_CHECK_DATABASES="${copy}" /startup/check-all.sh; then
+    echo >&2 "The copy of ${database} is not consistent, so ${database} was not changed. The copy is kept in ${copy} for investigation."
+    exit 1
+fi
+
+size_after="$(store_size "${copy}")"
+if ! swap_in_copy; then
+    echo >&2 "Could not swap the copy in for ${database}. The copy is kept in ${copy}."
+    exit 1
+fi
+if [ "${NEO4J_COMPACT_KEEP_ORIGINAL:-false}" == "true" ]; then
+    echo "The original ${database} is kept as ${original}."
+else
+    rm -rf "/data/databases/${original}" "/data/transactions/${original}"
+fi
+
+echo "Compacted ${database} from $(format_bytes "${size_before}") to $(format_bytes "${size_after}"), $(( size_before > 0 ? (size_before - size_after) * 100 / size_before : 0 ))% smaller."
+echo "The compacted database has a new store id, so the next backup of ${database} will be a full backup."
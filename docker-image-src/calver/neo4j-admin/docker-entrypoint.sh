@@ -3,6 +3,29 @@
 # load useful utility functions
 . /startup/utilities.sh
 
+# ==== KEEP STDOUT CLEAN WHEN STREAMING A DUMP ====
+# neo4j-admin database dump --to-stdout writes the dump itself to stdout, so anything else printed there corrupts it.
+# The original stdout is kept on file descriptor 3 for neo4j-admin, and everything this script prints goes to stderr.
+if containsElement "--to-stdout" "${@}"; then
+    exec 3>&1 1>&2
+    if [ -t 3 ]; then
+        echo >&2 "Refusing to write a database dump to a terminal.
+Redirect the output to a file or pipe it to another command, and do not allocate a tty with docker run -t. For example:
+
+docker run --rm <image> neo4j-admin database dump neo4j --to-stdout > neo4j.dump
+"
+        exit 1
+    fi
+    dump_to_stdout=true
+fi
+if containsElement "--from-stdin" "${@}" && [ -t 0 ]; then
+    echo >&2 "Loading a database from stdin needs the dump to be piped into the container, without a tty. For example:
+
+docker run --rm --interactive <image> neo4j-admin database load neo4j --from-stdin < neo4j.dump
+"
+    exit 1
+fi
+
 function check_mounted_folder_writable_with_chown
 {
     local mountFolder=${1}
@@ -13,11 +36,14 @@ function check_mounted_folder_writable_with_chown
             # warn that we're about to chown the folder and then chown it
             echo "Warning: Folder mounted to \"${mountFolder}\" is not writable from inside container. Changing folder owner to ${userid}."
             chown -R "${userid}":"${groupid}" "${mountFolder}"
+        elif ownership_already_verified "${mountFolder}"; then
+            debug_msg "${mountFolder} has not changed since its file permissions were last verified"
         # check permissions on files in the folder
-        elif [ $(${exec_cmd} find "${mountFolder}" -not -writable | wc -l) -gt 0 ]; then
+        elif has_unwritable_files "${mountFolder}" ${exec_cmd}; then
             echo "Warning: Some files inside \"${mountFolder}\" are not writable from inside container. Changing folder owner to ${userid}."
             chown -R "${userid}":"${groupid}" "${mountFolder}"
         fi
+        record_ownership_verified "${mountFolder}"
     else
         if [[ ! -w "${mountFolder}" ]]  && [[ "$(stat -c %U ${mountFolder})" != "neo4j" ]]; then
             print_permissions_advice_and_fail "${mountFolder}" "${userid}" "${groupid}"
@@ -32,7 +58,10 @@ if running_as_root; then
   userid="neo4j"
   groupid="neo4j"
   groups=($(id -G neo4j))
-  exec_cmd="runuser -p -u neo4j -g neo4j --"
+  # setpriv replaces itself with the command, unlike runuser which waits for it, so once the entrypoint execs it the
+  # command gets the signals sent to the container, such as the SIGTERM of docker stop.
+  # This is also the prefix the permission checks run their commands with, so it must not exec by itself.
+  exec_cmd="setpriv --reuid=$(id -u neo4j) --regid=$(id -g neo4j) --init-groups --"
   debug_msg "Running as root user inside neo4j-admin image"
 else
   userid="$(id -u)"
@@ -74,11 +103,19 @@ docker exec <CONTAINER NAME> neo4j-admin-report
 fi
 
 
+# ==== COMMANDS THAT RUN NEO4J-ADMIN FOR US ====
+# these run a script from /startup that runs neo4j-admin, so they are treated like neo4j-admin itself
+function is_orchestration_command
+{
+    [[ "${1}" == "backup-all" ]] || [[ "${1}" == "backup-daemon" ]] || [[ "${1}" == "check-all" ]] || \
+        [[ "${1}" == "compact" ]]
+}
+
 # ==== CHECK LICENSE AGREEMENT ====
 
 debug_msg "checking license"
-# Only prompt for license agreement if command contains "neo4j" in it
-if [[ "${1}" == *"neo4j"* ]]; then
+# Only prompt for license agreement if command contains "neo4j" in it, or runs neo4j-admin for us
+if [[ "${1}" == *"neo4j"* ]] || is_orchestration_command "${1}"; then
     if [ "${NEO4J_EDITION}" == "enterprise" ]; then
         : ${NEO4J_ACCEPT_LICENSE_AGREEMENT:="not accepted"}
         if [[ "$NEO4J_ACCEPT_LICENSE_AGREEMENT" != "yes" && "$NEO4J_ACCEPT_LICENSE_AGREEMENT" != "eval" ]]; then
@@ -135,9 +172,19 @@ if [ -d /backups ]; then
 fi
 
 # ==== START NEO4J-ADMIN COMMAND ====
+if is_orchestration_command "${1}"; then
+    set -- "/startup/${1}.sh" "${@:2}"
+fi
 if debugging_enabled; then
-    echo ${exec_cmd} "${@}" --verbose
-    ${exec_cmd} "${@}" --verbose
+    set -- "${@}" --verbose
+    echo ${exec_cmd} "${@}"
+fi
+if [ "${dump_to_stdout:-false}" == "true" ]; then
+    # give neo4j-admin back the original stdout to write the dump to
+    exec 1>&3 3>&-
+fi
+if running_as_root; then
+    exec ${exec_cmd} "${@}"
 else
     ${exec_cmd} "${@}"
 fi
@@ -1,9 +1,40 @@
 
+# Files the docker entrypoints keep between container restarts to speed up startup.
+# These are only ever caches, so deleting this folder is always safe.
+ENTRYPOINT_CACHE_DIR="/data/.docker-entrypoint"
+
 function running_as_root
 {
     test "$(id -u)" = "0"
 }
 
+function create_entrypoint_cache_dir
+{
+    # The cache folder is inside the mounted data folder, so like the rest of /data it belongs to the user neo4j
+    # runs as. Otherwise a later container started with --user could not update it.
+    mkdir -p "${ENTRYPOINT_CACHE_DIR}" || return 1
+    if running_as_root; then
+        chown "${userid}":"${groupid}" "${ENTRYPOINT_CACHE_DIR}"
+    fi
+}
+
+function write_entrypoint_cache_file
+{
+    # Replaces a file in the entrypoint cache folder with what is on stdin. The file is replaced rather than written to,
+    # so a container running as a different user can still update a file that an earlier container wrote.
+    local _file="${1}"
+    local _tmp_file
+    if ! { create_entrypoint_cache_dir && \
+           _tmp_file="$(mktemp "${_file}.XXXXXX")" && \
+           cat > "${_tmp_file}" && \
+           chmod 644 "${_tmp_file}" && \
+           mv -f "${_tmp_file}" "${_file}"; } 2>/dev/null
+    then
+        rm -f "${_tmp_file:-}"
+        return 1
+    fi
+}
+
 function secure_mode_enabled
 {
     test "${SECURE_FILE_PERMISSIONS:=no}" = "yes"
@@ -21,6 +52,71 @@ function debug_msg
     fi
 }
 
+function monotonic_time_ms
+{
+    # milliseconds since boot, for timing the steps of the entrypoints. It starts no new process and works with the bash
+    # of every image, and unlike the wall clock it never jumps, but it is only accurate to 10ms.
+    local _uptime _idle
+    read -r _uptime _idle < /proc/uptime
+    echo $(( 10#${_uptime/./} * 10 ))
+}
+
+function startup_profiling_enabled
+{
+    test "${NEO4J_STARTUP_PROFILE:-false}" = "true"
+}
+
+_startup_phase=""
+_startup_phase_start_ms=""
+_startup_profile_start_ms=""
+_startup_profile_phases=()
+
+function end_startup_phase
+{
+    local _now="${1}"
+    if [ -n "${_startup_phase}" ]; then
+        _startup_profile_phases+=("{\"phase\":\"${_startup_phase}\",\"ms\":$(( _now - _startup_phase_start_ms ))}")
+    fi
+    _startup_phase=""
+}
+
+function startup_phase
+{
+    # Ends the current phase of the entrypoint and starts the next one.
+    # With NEO4J_STARTUP_PROFILE=true, the time spent in each phase is recorded for write_startup_profile.
+    local _name="${1}"
+    debug_msg "==== ${_name} ===="
+    if ! startup_profiling_enabled; then
+        return 0
+    fi
+    local _now="$(monotonic_time_ms)"
+    : ${_startup_profile_start_ms:=${_now}}
+    end_startup_phase "${_now}"
+    _startup_phase="${_name}"
+    _startup_phase_start_ms="${_now}"
+}
+
+function write_startup_profile
+{
+    # Prints the time spent in each startup phase as json, and saves it to /logs/startup-profile.json
+    local _profile_file="/logs/startup-profile.json"
+    if ! startup_profiling_enabled; then
+        return 0
+    fi
+    local _now="$(monotonic_time_ms)"
+    end_startup_phase "${_now}"
+    local _profile="{\"startup_profile\":{\"total_ms\":$(( _now - ${_startup_profile_start_ms:-${_now}} )),\"phases\":[$(IFS=,; echo "${_startup_profile_phases[*]}")]}}"
+
+    echo "${_profile}"
+    if [ -d /logs ] && { echo "${_profile}" > "${_profile_file}"; } 2>/dev/null; then
+        if running_as_root; then
+            chown "${userid}":"${groupid}" "${_profile_file}"
+        fi
+    else
+        echo >&2 "Warning: Could not write startup profile to ${_profile_file}"
+    fi
+}
+
 function containsElement
 {
   local e match="$1"
@@ -34,6 +130,65 @@ function is_writable
     ${exec_cmd} test -w "${1}"
 }
 
+function has_unwritable_files
+{
+    # Succeeds if anything inside the folder is not writable by the user the command after the folder runs as,
+    # for example: has_unwritable_files /data su-exec neo4j:neo4j
+    # Each sub folder is scanned in parallel and scanning stops at the first unwritable file.
+    # The entrypoint cache may deliberately be owned by root, so is not checked.
+    local _folder="${1}"
+    shift
+    local _run_as=("${@}")
+
+    if [ -n "$("${_run_as[@]}" find "${_folder}" -maxdepth 1 -path "${ENTRYPOINT_CACHE_DIR}" -prune -o -not -writable -print -quit)" ]; then
+        return 0
+    fi
+    # A worker exiting with 255 makes xargs stop starting new workers.
+    if ! find "${_folder}" -mindepth 2 -maxdepth 2 -not -path "${ENTRYPOINT_CACHE_DIR}/*" -print0 | \
+        "${_run_as[@]}" xargs -0 --no-run-if-empty --max-args=1 --max-procs="$(nproc)" \
+            sh -c 'if [ -n "$(find "${1}" -not -writable -print -quit)" ]; then exit 255; fi' has_unwritable_files \
+            2>/dev/null
+    then
+        return 0
+    fi
+    return 1
+}
+
+function ownership_stamp
+{
+    # A cheap fingerprint of a mounted folder's ownership: who we check as, the folder's owner, mode and modification
+    # time, and a checksum of the files up to 3 levels deep that are not owned and writable by ${userid}:${groupid}.
+    # 3 levels reaches the store and transaction log files in /data/databases/<db> and /data/transactions/<db>, so a
+    # file there that changes owner changes the fingerprint, while the files neo4j creates itself do not.
+    # If this has not changed since the folder was last verified, there is no need to scan the whole folder again.
+    local _folder="${1}"
+    local _foreign_files
+    _foreign_files="$(find "${_folder}" -mindepth 1 -maxdepth 3 -path "${ENTRYPOINT_CACHE_DIR}" -prune -o \
+                          \( ! -user "${userid}" -o ! -group "${groupid}" -o ! -perm -u+w \) -printf '%U:%G:%m %P\n' \
+                          2>/dev/null | cksum)"
+    echo "${_folder} ${userid}:${groupid} $(stat -c '%u:%g:%a:%Y' "${_folder}") ${_foreign_files// /:}"
+}
+
+function ownership_already_verified
+{
+    local _folder="${1}"
+    grep -q --line-regexp --fixed-strings "$(ownership_stamp "${_folder}")" "${ENTRYPOINT_CACHE_DIR}/verified-ownership" 2>/dev/null
+}
+
+function record_ownership_verified
+{
+    local _folder="${1}"
+    local _stamps="${ENTRYPOINT_CACHE_DIR}/verified-ownership"
+
+    # create the cache folder before taking the stamp, in case the cache folder is inside the folder we are stamping.
+    if ! { create_entrypoint_cache_dir 2>/dev/null && \
+           { awk -v folder="${_folder}" '$1 != folder' "${_stamps}" 2>/dev/null; ownership_stamp "${_folder}"; } | \
+               write_entrypoint_cache_file "${_stamps}"; }
+    then
+        debug_msg "Could not record that ${_folder} ownership was verified"
+    fi
+}
+
 function print_permissions_advice_and_fail
 {
     local _directory=${1}
@@ -51,4 +206,109 @@ If the folder is owned by the current user, this can be done by adding this flag
     exit 1
 }
 
+function get_neo4j_conf_setting
+{
+    # Prints the value of a setting in neo4j.conf, or the given default. Later values override earlier ones.
+    local _setting="${1}"
+    local _value="${2}"
+    local _line
+    if [ -r "${NEO4J_HOME}"/conf/neo4j.conf ]; then
+        while IFS= read -r _line || [ -n "${_line}" ]; do
+            if [[ "${_line}" == "${_setting}="* ]]; then
+                _value="${_line#*=}"
+            fi
+        done < "${NEO4J_HOME}"/conf/neo4j.conf
+    fi
+    echo "${_value}"
+}
+
+function get_connector_probe_address
+{
+    # Prints the host and port to probe a connector on, separated by a space.
+    local _default_port="${2}"
+    local _address _host _port
+    _address="$(get_neo4j_conf_setting "server.${1}.listen_address" ":${_default_port}")"
+    _host="${_address%:*}"
+    _port="${_address##*:}"
+    if [ -z "${_host}" ]; then
+        _host="$(get_neo4j_conf_setting "server.default_listen_address" "127.0.0.1")"
+    fi
+    _host="${_host#[}"
+    _host="${_host%]}"
+    # a server listening on all interfaces can be reached on the loopback interface
+    case "${_host}" in
+        0.0.0.0) _host="127.0.0.1" ;;
+        ::) _host="::1" ;;
+    esac
+    echo "${_host} ${_port:-${_default_port}}"
+}
 
+function get_container_memory_limit
+{
+    # Prints the container memory limit in bytes, or nothing if the container memory is not limited.
+    local _limit=""
+    if [ -r /sys/fs/cgroup/memory.max ]; then
+        # cgroup v2
+        _limit="$(< /sys/fs/cgroup/memory.max)"
+    elif [ -r /sys/fs/cgroup/memory/memory.limit_in_bytes ]; then
+        # cgroup v1
+        _limit="$(< /sys/fs/cgroup/memory/memory.limit_in_bytes)"
+    fi
+    # cgroup v2 reports no limit as "max", cgroup v1 reports it as a number close to the largest 64 bit integer.
+    if [[ "${_limit}" =~ ^[0-9]+$ ]] && [ "${_limit}" -lt $(( 1 << 50 )) ]; then
+        echo "${_limit}"
+    fi
+}
+
+function get_available_memory
+{
+    # Prints the memory in bytes this container can use: the container memory limit,
+    # or the available system memory if the container memory is not limited.
+    local _limit _key _value _
+    _limit="$(get_container_memory_limit)"
+    if [ -n "${_limit}" ]; then
+        echo "${_limit}"
+        return
+    fi
+    while read -r _key _value _; do
+        if [ "${_key}" == "MemAvailable:" ]; then
+            echo $(( _value * 1024 ))
+            return
+        fi
+    done < /proc/meminfo
+}
+
+function get_container_cpu_limit
+{
+    # Prints the number of CPUs this container can use, taking both the CPU quota and the CPUs it may run on into account.
+    local _cpus _quota _period
+    _cpus="$(nproc)"
+    if [ -r /sys/fs/cgroup/cpu.max ]; then
+        # cgroup v2
+        read -r _quota _period < /sys/fs/cgroup/cpu.max
+    elif [ -r /sys/fs/cgroup/cpu/cpu.cfs_quota_us ] && [ -r /sys/fs/cgroup/cpu/cpu.cfs_period_us ]; then
+        # cgroup v1
+        _quota="$(< /sys/fs/cgroup/cpu/cpu.cfs_quota_us)"
+        _period="$(< /sys/fs/cgroup/cpu/cpu.cfs_period_us)"
+    fi
+    # no quota is "max" in cgroup v2 and -1 in cgroup v1. A part of a CPU counts as a whole one.
+    if [[ "${_quota:-}" =~ ^[0-9]+$ ]] && [[ "${_period:-}" =~ ^[1-9][0-9]*$ ]]; then
+        _quota=$(( (_quota + _period - 1) / _period ))
+        if [ "${_quota}" -lt "${_cpus}" ]; then
+            _cpus="${_quota}"
+        fi
+    fi
+    echo $(( _cpus > 0 ? _cpus : 1 ))
+}
+
+function format_bytes
+{
+    local _bytes="${1}"
+    if [ "${_bytes}" -ge $(( 1024 * 1024 * 1024 )) ]; then
+        echo "$(( _bytes * 10 / 1024 / 1024 / 1024 / 10 )).$(( _bytes * 10 / 1024 / 1024 / 1024 % 10 ))GiB"
+    elif [ "${_bytes}" -ge $(( 1024 * 1024 )) ]; then
+        echo "$(( _bytes * 10 / 1024 / 1024 / 10 )).$(( _bytes * 10 / 1024 / 1024 % 10 ))MiB"
+    else
+        echo "$(( _bytes / 1024 ))KiB"
+    fi
+}
@@ -262,6 +262,58 @@ public class TestAuthentication
         }
     }
 
+    @ParameterizedTest(name = "as_current_user_{0}")
+    @ValueSource(booleans = {true, false})
+    void testSetInitialPasswordSkippedOnRestart( boolean asCurrentUser ) throws Exception
+    {
+        Assumptions.assumeTrue( TestSettings.NEO4J_VERSION.isAtLeastVersion( Neo4jVersion.NEO4J_VERSION_500 ),
+                                "Skipping set-initial-password on restart is only a feature in 5.0 onwards");
+        String password = "some_valid_password";
+        Path dataMount;
+
+        try(GenericContainer firstContainer = createContainer( asCurrentUser ))
+        {
+            firstContainer.withEnv( "NEO4J_AUTH", "neo4j/"+password )
+                          .withEnv( "NEO4J_DEBUG", "yes" )
+                          .waitingFor(WaitStrategies.waitForNeo4jReady( password));
+            dataMount = temporaryFolderManager.createFolderAndMountAsVolume(firstContainer, "/data");
+            firstContainer.start();
+            Assertions.assertTrue( firstContainer.getLogs().contains( "Setting initial password" ),
+                                   "Initial password was not set on first start" );
+            DatabaseIO db = new DatabaseIO(firstContainer);
+            db.putInitialDataIntoContainer( "neo4j", password );
+        }
+
+        try(GenericContainer secondContainer = createContainer( asCurrentUser ))
+        {
+            secondContainer.withEnv( "NEO4J_AUTH", "neo4j/"+password )
+                           .withEnv( "NEO4J_DEBUG", "yes" )
+                           .waitingFor(WaitStrategies.waitForNeo4jReady( password));
+            temporaryFolderManager.mountHostFolderAsVolume( secondContainer, dataMount, "/data" );
+            secondContainer.start();
+            String logs = secondContainer.getLogs();
+            Assertions.assertTrue( logs.contains( "Skipping setting initial password" ),
+                                   "set-initial-password was run even though the password was already set:\n"+logs );
+            DatabaseIO db = new DatabaseIO(secondContainer);
+            db.verifyInitialDataInContainer( "neo4j", password );
+        }
+
+        try(GenericContainer forcedContainer = createContainer( asCurrentUser ))
+        {
+            forcedContainer.withEnv( "NEO4J_AUTH", "neo4j/"+password )
+                           .withEnv( "NEO4J_AUTH_FORCE_SET_INITIAL_PASSWORD", "true" )
+                           .withEnv( "NEO4J_DEBUG", "yes" )
+                           .waitingFor(WaitStrategies.waitForNeo4jReady( password));
+            temporaryFolderManager.mountHostFolderAsVolume( forcedContainer, dataMount, "/data" );
+            forcedContainer.start();
+            Assertions.assertTrue( forcedContainer.getLogs().contains( "Setting initial password" ),
+                                   "set-initial-password was not run even though it was forced" );
+            // the system database already exists, so forcing set-initial-password does not change the password
+            DatabaseIO db = new DatabaseIO(forcedContainer);
+            db.verifyInitialDataInContainer( "neo4j", password );
+        }
+    }
+
     @Test
     void testPromptsForPasswordReset()
     {
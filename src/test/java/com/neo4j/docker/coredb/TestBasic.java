@@ -281,4 +281,229 @@ public class TestBasic
             Assertions.assertTrue(logs.contains("SCRIPT EXECUTED!"), "The extension script did not get executed");
         }
     }
+
+    @Test
+    void testRestartReusesCachedRunCommand() throws IOException
+    {
+        Assumptions.assumeTrue( TestSettings.NEO4J_VERSION.isAtLeastVersion( Neo4jVersion.NEO4J_VERSION_500 ),
+                                "Neo4j run command is not cached before 5.0.0" );
+        Path dataMount = temporaryFolderManager.createFolder( "data" );
+        for ( int restart = 0; restart < 2; restart++ )
+        {
+            try ( GenericContainer container = createBasicContainer() )
+            {
+                temporaryFolderManager.mountHostFolderAsVolume( container, dataMount, "/data" );
+                container.withEnv( "NEO4J_AUTH", "none" )
+                         .withEnv( "NEO4J_DEBUG", "true" )
+                         .waitingFor( waitForBoltReady() );
+                container.start();
+                String stdout = container.getLogs( OutputFrame.OutputType.STDOUT );
+                Assertions.assertEquals( restart > 0, stdout.contains( "Using neo4j run command cached in" ),
+                                         "The cached neo4j run command should only be used after the first start\n" + stdout );
+            }
+        }
+    }
+
+    @Test
+    void testStartupProfileIsWrittenToLogs() throws IOException
+    {
+        Assumptions.assumeTrue( TestSettings.NEO4J_VERSION.isAtLeastVersion( Neo4jVersion.NEO4J_VERSION_500 ),
+                                "Startup profiling was added in 5.0.0" );
+        Path logsMount = temporaryFolderManager.createFolder( "logs" );
+        try ( GenericContainer container = createBasicContainer() )
+        {
+            temporaryFolderManager.mountHostFolderAsVolume( container, logsMount, "/logs" );
+            container.withEnv( "NEO4J_AUTH", "none" )
+                     .withEnv( "NEO4J_STARTUP_PROFILE", "true" )
+                     .waitingFor( waitForBoltReady() );
+            container.start();
+            String stdout = container.getLogs( OutputFrame.OutputType.STDOUT );
+            Assertions.assertTrue( stdout.contains( "{\"startup_profile\":{\"total_ms\":" ),
+                                   "Startup profile was not printed\n" + stdout );
+            Path profile = logsMount.resolve( "startup-profile.json" );
+            Assertions.assertTrue( profile.toFile().exists(), "Startup profile was not written to /logs" );
+            String profileJson = Files.readString( profile );
+            for ( String phase : List.of( "check file permissions", "set configurations", "set password", "get neo4j run command" ) )
+            {
+                Assertions.assertTrue( profileJson.contains( "{\"phase\":\"" + phase + "\",\"ms\":" ),
+                                       "Startup profile has no timing for " + phase + "\n" + profileJson );
+            }
+            Assertions.assertFalse( Files.readString( logsMount.resolve( "debug.log" ) ).contains( "startup.profile" ),
+                                    "NEO4J_STARTUP_PROFILE should not be treated as a neo4j setting" );
+        }
+    }
+
+    @Test
+    void testStoreFilesArePrefetchedOnRestart() throws IOException
+    {
+        Assumptions.assumeTrue( TestSettings.NEO4J_VERSION.isAtLeastVersion( Neo4jVersion.NEO4J_VERSION_500 ),
+                                "Store file prefetching was added in 5.0.0" );
+        Path dataMount = temporaryFolderManager.createFolder( "data" );
+        for ( int restart = 0; restart < 2; restart++ )
+        {
+            try ( GenericContainer container = createBasicContainer() )
+            {
+                temporaryFolderManager.mountHostFolderAsVolume( container, dataMount, "/data" );
+                container.withEnv( "NEO4J_AUTH", "none" )
+                         .withEnv( "NEO4J_PAGECACHE_PREFETCH", "true" )
+                         .waitingFor( waitForBoltReady() );
+                container.start();
+                String stdout = container.getLogs( OutputFrame.OutputType.STDOUT );
+                Assertions.assertEquals( restart > 0, stdout.matches( "(?s).*Prefetched \\d+MiB of store files in \\d+ms.*" ),
+                                         "Store files should only be prefetched once there is a store\n" + stdout );
+            }
+        }
+    }
+
+    @Test
+    void testRestartUsesClassDataSharingArchive() throws Exception
+    {
+        Assumptions.assumeTrue( TestSettings.NEO4J_VERSION.isAtLeastVersion( Neo4jVersion.NEO4J_VERSION_500 ),
+                                "Class data sharing archives were added in 5.0.0" );
+        Path dataMount = temporaryFolderManager.createFolder( "data" );
+        String[] expectedMessages = {"Neo4j will record the classes it loads",
+                                     "Creating class data sharing archive",
+                                     "Using class data sharing archive"};
+        for ( int restart = 0; restart < expectedMessages.length; restart++ )
+        {
+            try ( GenericContainer container = createBasicContainer() )
+            {
+                temporaryFolderManager.mountHostFolderAsVolume( container, dataMount, "/data" );
+                container.withEnv( "NEO4J_AUTH", "none" )
+                         .withEnv( "NEO4J_DEBUG", "true" )
+                         .withEnv( "NEO4J_CLASS_DATA_SHARING", "true" )
+                         .waitingFor( waitForBoltReady() );
+                container.start();
+                String stdout = container.getLogs( OutputFrame.OutputType.STDOUT );
+                Assertions.assertTrue( stdout.contains( expectedMessages[restart] ),
+                                       "Expected '" + expectedMessages[restart] + "' on start " + (restart + 1) + "\n" + stdout );
+                if ( restart == 1 )
+                {
+                    // the archive is created in the background, next to the running server
+                    boolean archived = false;
+                    for ( int attempt = 0; attempt < 60 && !archived; attempt++ )
+                    {
+                        archived = container.execInContainer( "sh", "-c", "ls /data/.docker-entrypoint/cds/*.jsa" ).getExitCode() == 0;
+                        Thread.sleep( 1000 );
+                    }
+                    Assertions.assertTrue( archived, "Neo4j did not create a class data sharing archive from the classes it loaded" );
+                }
+                // the archive is not written on shutdown, so neo4j stops as quickly as without it
+                container.getDockerClient().stopContainerCmd( container.getContainerId() ).withTimeout( 60 ).exec();
+            }
+        }
+    }
+
+    @Test
+    void testClassDataSharingIsOffByDefault() throws Exception
+    {
+        Assumptions.assumeTrue( TestSettings.NEO4J_VERSION.isAtLeastVersion( Neo4jVersion.NEO4J_VERSION_500 ),
+                                "Class data sharing archives were added in 5.0.0" );
+        try ( GenericContainer container = createBasicContainer() )
+        {
+            container.withEnv( "NEO4J_AUTH", "none" )
+                     .withEnv( "NEO4J_DEBUG", "true" )
+                     .waitingFor( waitForBoltReady() );
+            container.start();
+            String stdout = container.getLogs( OutputFrame.OutputType.STDOUT );
+            Assertions.assertFalse( stdout.contains( "class data sharing" ) || stdout.contains( "record the classes" ),
+                                    "Class data sharing should only be used when NEO4J_CLASS_DATA_SHARING=true\n" + stdout );
+        }
+    }
+
+    @Test
+    void testHealthcheckReportsLivenessAndReadiness() throws Exception
+    {
+        Assumptions.assumeTrue( TestSettings.NEO4J_VERSION.isAtLeastVersion( Neo4jVersion.NEO4J_VERSION_500 ),
+                                "neo4j-healthcheck was added in 5.0.0" );
+        try ( GenericContainer container = createBasicContainer() )
+        {
+            container.withEnv( "NEO4J_AUTH", "neo4j/password" )
+                     .waitingFor( waitForNeo4jReady( "password" ) );
+            container.start();
+            Container.ExecResult liveness = container.execInContainer( "neo4j-healthcheck", "liveness" );
+            Assertions.assertEquals( 0, liveness.getExitCode(), "Liveness check failed: " + liveness.getStdout() );
+            Container.ExecResult readiness = container.execInContainer( "neo4j-healthcheck", "readiness" );
+            Assertions.assertEquals( 0, readiness.getExitCode(), "Readiness check failed: " + readiness.getStdout() );
+
+            // stop neo4j without stopping the container
+            container.execInContainer( "pkill", "-STOP", "java" );
+            Container.ExecResult stopped = container.execInContainer( "timeout", "5", "neo4j-healthcheck", "readiness" );
+            Assertions.assertNotEquals( 0, stopped.getExitCode(), "Readiness check passed while neo4j was suspended" );
+            container.execInContainer( "pkill", "-CONT", "java" );
+        }
+    }
+
+    @Test
+    void testHealthcheckIsHealthyWithoutServer() throws Exception
+    {
+        Assumptions.assumeTrue( TestSettings.NEO4J_VERSION.isAtLeastVersion( Neo4jVersion.NEO4J_VERSION_500 ),
+                                "neo4j-healthcheck was added in 5.0.0" );
+        // nothing listens on a port, so there is nothing to wait for
+        try ( GenericContainer container = new GenericContainer( TestSettings.IMAGE_ID ) )
+        {
+            container.withEnv( "NEO4J_ACCEPT_LICENSE_AGREEMENT", "yes" )
+                     .withLogConsumer( new Slf4jLogConsumer( log ) )
+                     .withCommand( "sleep", "300" );
+            container.start();
+            Container.ExecResult liveness = container.execInContainer( "neo4j-healthcheck", "liveness" );
+            Assertions.assertEquals( 0, liveness.getExitCode(),
+                                     "A container that does not run neo4j should not be unhealthy: " + liveness.getStdout() );
+        }
+    }
+
+    @Test
+    void testPrestopCheckpointsBeforeShutdown() throws Exception
+    {
+        Assumptions.assumeTrue( TestSettings.NEO4J_VERSION.isAtLeastVersion( Neo4jVersion.NEO4J_VERSION_500 ),
+                                "neo4j-prestop was added in 5.0.0" );
+        try ( GenericContainer container = createBasicContainer() )
+        {
+            container.withEnv( "NEO4J_AUTH", "neo4j/password" )
+                     .waitingFor( waitForNeo4jReady( "password" ) );
+            container.start();
+            DatabaseIO dbio = new DatabaseIO( container );
+            dbio.putInitialDataIntoContainer( "neo4j", "password" );
+
+            Container.ExecResult prestop = container.execInContainer( "neo4j-prestop" );
+            Assertions.assertEquals( 0, prestop.getExitCode(), "neo4j-prestop failed:\n" + prestop );
+            Assertions.assertTrue( prestop.getStdout().contains( "Checkpoint while serving succeeded" ), prestop.getStdout() );
+            Assertions.assertTrue( prestop.getStdout().matches( "(?s).*Pre-stop finished in \\d+ms.*" ), prestop.getStdout() );
+            // neo4j is still serving after the pre-stop checkpoint
+            dbio.verifyInitialDataInContainer( "neo4j", "password" );
+            Assertions.assertTrue( container.getLogs().contains( "Checkpoint while serving succeeded" ),
+                                   "neo4j-prestop output was not written to the container log" );
+        }
+    }
+
+    @Test
+    void testSmallProfileStaysWithinFootprintBudget() throws Exception
+    {
+        Assumptions.assumeTrue( TestSettings.NEO4J_VERSION.isAtLeastVersion( Neo4jVersion.NEO4J_VERSION_500 ),
+                                "NEO4J_PROFILE was added in 5.0.0" );
+        // per instance budget for NEO4J_PROFILE=small: 32M page cache, at most 256M heap, and the rest of the JVM.
+        final int rssBudgetMiB = 640;
+        final int diskBudgetMiB = 64;
+        try ( GenericContainer container = createBasicContainer() )
+        {
+            container.withEnv( "NEO4J_AUTH", "none" )
+                     .withEnv( "NEO4J_PROFILE", "small" )
+                     .waitingFor( waitForNeo4jReady( "none" ) );
+            container.start();
+            DatabaseIO dbio = new DatabaseIO( container );
+            dbio.putInitialDataIntoContainer( "neo4j", "none" );
+            dbio.verifyInitialDataInContainer( "neo4j", "none" );
+
+            String rss = container.execInContainer( "sh", "-c", "ps -o rss= -C java" ).getStdout().trim();
+            int rssMiB = Integer.parseInt( rss.split( "\\s+" )[0] ) / 1024;
+            String du = container.execInContainer( "du", "-smc", "/data", "/logs" ).getStdout().trim();
+            String[] duLines = du.split( "\n" );
+            int diskMiB = Integer.parseInt( duLines[duLines.length - 1].split( "\\s+" )[0] );
+            log.info( "NEO4J_PROFILE=small uses {}MiB RSS and {}MiB of disk", rssMiB, diskMiB );
+            Assertions.assertTrue( rssMiB <= rssBudgetMiB,
+                                   "NEO4J_PROFILE=small uses "+rssMiB+"MiB RSS, the budget is "+rssBudgetMiB+"MiB" );
+            Assertions.assertTrue( diskMiB <= diskBudgetMiB,
+                                   "NEO4J_PROFILE=small uses "+diskMiB+"MiB of disk, the budget is "+diskBudgetMiB+"MiB\n"+du );
+        }
+    }
 }
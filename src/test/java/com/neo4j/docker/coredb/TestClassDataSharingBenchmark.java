@@ -0,0 +1,89 @@
+package com.neo4j.docker.coredb;
+
+import com.neo4j.docker.utils.Neo4jVersion;
+import com.neo4j.docker.utils.TemporaryFolderManager;
+import com.neo4j.docker.utils.TestSettings;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.containers.output.Slf4jLogConsumer;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static com.neo4j.docker.utils.WaitStrategies.waitForBoltReady;
+
+// Compares how long neo4j takes to start with and without a class data sharing archive.
+// These take a while and the results are only logged, so they only run with mvn test -P benchmark
+@Tag("Benchmark")
+public class TestClassDataSharingBenchmark
+{
+    private final Logger log = LoggerFactory.getLogger( TestClassDataSharingBenchmark.class );
+    private static final int STARTS = 5;
+    @RegisterExtension
+    public static TemporaryFolderManager temporaryFolderManager = new TemporaryFolderManager();
+
+    @BeforeAll
+    static void beforeAll()
+    {
+        Assumptions.assumeTrue( TestSettings.NEO4J_VERSION.isAtLeastVersion( Neo4jVersion.NEO4J_VERSION_500 ),
+                                "Class data sharing archives were added in 5.0.0" );
+    }
+
+    private Duration timeStart( Path dataMount, boolean classDataSharing ) throws Exception
+    {
+        try ( GenericContainer container = new GenericContainer( TestSettings.IMAGE_ID ) )
+        {
+            container.withEnv( "NEO4J_ACCEPT_LICENSE_AGREEMENT", "yes" )
+                     .withEnv( "NEO4J_AUTH", "none" )
+                     .withEnv( "NEO4J_CLASS_DATA_SHARING", Boolean.toString( classDataSharing ) )
+                     .withExposedPorts( 7474, 7687 )
+                     .withLogConsumer( new Slf4jLogConsumer( log ) )
+                     .waitingFor( waitForBoltReady() );
+            temporaryFolderManager.mountHostFolderAsVolume( container, dataMount, "/data" );
+            long start = System.nanoTime();
+            container.start();
+            Duration startTime = Duration.ofNanos( System.nanoTime() - start );
+            if ( classDataSharing )
+            {
+                // let the archive be created in the background before stopping
+                for ( int attempt = 0; attempt < 60; attempt++ )
+                {
+                    if ( container.execInContainer( "sh", "-c", "ls /data/.docker-entrypoint/cds/*.jsa" ).getExitCode() == 0 )
+                    {
+                        break;
+                    }
+                    Thread.sleep( 1000 );
+                }
+            }
+            container.getDockerClient().stopContainerCmd( container.getContainerId() ).withTimeout( 60 ).exec();
+            return startTime;
+        }
+    }
+
+    @Test
+    void benchmarkStartWithClassDataSharingArchive() throws Exception
+    {
+        Path dataMount = temporaryFolderManager.createFolder( "data" );
+        // the first start records the classes and the second one archives them
+        timeStart( dataMount, true );
+        timeStart( dataMount, true );
+
+        long withoutArchiveMs = 0;
+        long withArchiveMs = 0;
+        for ( int i = 0; i < STARTS; i++ )
+        {
+            withoutArchiveMs += timeStart( dataMount, false ).toMillis();
+            withArchiveMs += timeStart( dataMount, true ).toMillis();
+        }
+        log.info( "Average time until bolt is ready over {} starts: {}ms without a class data sharing archive, {}ms with one",
+                  STARTS, withoutArchiveMs / STARTS, withArchiveMs / STARTS );
+        Assertions.assertTrue( withArchiveMs > 0 && withoutArchiveMs > 0 );
+    }
+}
@@ -31,6 +31,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
+import java.util.Map;
 import java.util.Random;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
@@ -324,4 +325,116 @@ public class TestMounting
             // if debug.log doesn't get re-owned, neo4j will not start and this test will fail here
         }
     }
+
+    @Test
+    void shouldReownDeepDataFilesAndNotRescanUnchangedData() throws Exception
+    {
+        Assumptions.assumeTrue( TestSettings.NEO4J_VERSION.isAtLeastVersion( Neo4jVersion.NEO4J_VERSION_500 ),
+                                "Data ownership is only remembered from 5.0 onwards" );
+
+        Path dataMount = temporaryFolderManager.createFolder( "data" );
+        Path deepFile = dataMount.resolve( "databases" ).resolve( "somedb" ).resolve( "somefile" );
+        Files.createDirectories( deepFile.getParent() );
+        Files.write( deepFile, "some store words".getBytes() );
+        // make neo4j own the data folder but NOT a file deep inside it
+        temporaryFolderManager.setFolderOwnerToNeo4j( dataMount );
+        temporaryFolderManager.setFolderOwnerToCurrentUser( deepFile );
+
+        try ( GenericContainer container = setupBasicContainer( false, false ) )
+        {
+            temporaryFolderManager.mountHostFolderAsVolume( container, dataMount, "/data" );
+            container.start();
+            Assertions.assertTrue( container.getLogs( OutputFrame.OutputType.STDOUT )
+                                            .contains( "Some files inside \"/data\" are not writable" ),
+                                   "Did not find the unwritable file deep inside /data" );
+            Assertions.assertEquals( "7474",
+                                     container.execInContainer( "stat", "-c", "%u", "/data/databases/somedb/somefile" )
+                                              .getStdout().trim(),
+                                     "Did not re-own the unwritable file deep inside /data" );
+        }
+        // the first start creates the databases, so /data only stops changing after the second start.
+        try ( GenericContainer container = setupBasicContainer( false, false ) )
+        {
+            temporaryFolderManager.mountHostFolderAsVolume( container, dataMount, "/data" );
+            container.start();
+        }
+        try ( GenericContainer container = setupBasicContainer( false, false ) )
+        {
+            temporaryFolderManager.mountHostFolderAsVolume( container, dataMount, "/data" );
+            container.withEnv( "NEO4J_DEBUG", "yes" );
+            container.start();
+            String logs = container.getLogs( OutputFrame.OutputType.STDOUT );
+            Assertions.assertTrue( logs.contains( "/data has not changed since its file permissions were last verified" ),
+                                   "Rescanned /data even though it has not changed since the last start" );
+            Assertions.assertFalse( logs.contains( "are not writable from inside container" ),
+                                    "Re-owned files in /data on the second start" );
+        }
+    }
+
+    @Test
+    void shouldRescanDataWhenNestedFileChangesOwnerBetweenStarts() throws Exception
+    {
+        Assumptions.assumeTrue( TestSettings.NEO4J_VERSION.isAtLeastVersion( Neo4jVersion.NEO4J_VERSION_500 ),
+                                "Data ownership is only remembered from 5.0 onwards" );
+
+        Path dataMount = temporaryFolderManager.createFolder( "data" );
+        Path deepFile = dataMount.resolve( "databases" ).resolve( "somedb" ).resolve( "somefile" );
+        Files.createDirectories( deepFile.getParent() );
+        Files.write( deepFile, "some store words".getBytes() );
+        temporaryFolderManager.setFolderOwnerToNeo4j( dataMount );
+        // the first start creates the databases, so /data only stops changing after the second start.
+        for ( int i = 0; i < 2; i++ )
+        {
+            try ( GenericContainer container = setupBasicContainer( false, false ) )
+            {
+                temporaryFolderManager.mountHostFolderAsVolume( container, dataMount, "/data" );
+                container.start();
+            }
+        }
+        // a file deep inside /data changes owner while the container is stopped, without changing the top of /data
+        temporaryFolderManager.setFolderOwnerToCurrentUser( deepFile );
+
+        try ( GenericContainer container = setupBasicContainer( false, false ) )
+        {
+            temporaryFolderManager.mountHostFolderAsVolume( container, dataMount, "/data" );
+            container.withEnv( "NEO4J_DEBUG", "yes" );
+            container.start();
+            String logs = container.getLogs( OutputFrame.OutputType.STDOUT );
+            Assertions.assertFalse( logs.contains( "/data has not changed since its file permissions were last verified" ),
+                                    "Did not notice that a file deep inside /data changed owner" );
+            Assertions.assertTrue( logs.contains( "Some files inside \"/data\" are not writable" ),
+                                   "Did not find the file deep inside /data that changed owner" );
+            Assertions.assertEquals( "7474",
+                                     container.execInContainer( "stat", "-c", "%u", "/data/databases/somedb/somefile" )
+                                              .getStdout().trim(),
+                                     "Did not re-own the file deep inside /data that changed owner" );
+        }
+    }
+
+    @Test
+    void shouldKeepEphemeralDataOnTmpfs() throws Exception
+    {
+        Assumptions.assumeTrue( TestSettings.NEO4J_VERSION.isAtLeastVersion( Neo4jVersion.NEO4J_VERSION_500 ),
+                                "NEO4J_EPHEMERAL is only available from 5.0 onwards" );
+        try ( GenericContainer container = setupBasicContainer( false, false ) )
+        {
+            container.withEnv( "NEO4J_EPHEMERAL", "true" )
+                     .withTmpFs( Map.of( "/data", "rw" ) );
+            container.start();
+            Assertions.assertTrue( container.getLogs( OutputFrame.OutputType.STDERR )
+                                            .contains( "ALL DATA IN THIS CONTAINER IS LOST WHEN IT STOPS" ),
+                                   "Did not warn that the data is ephemeral" );
+            DatabaseIO dbio = new DatabaseIO( container );
+            dbio.putInitialDataIntoContainer( "neo4j", "none" );
+            dbio.verifyInitialDataInContainer( "neo4j", "none" );
+            Assertions.assertEquals( "false",
+                                     dbio.runCypherQuery( "neo4j", "none",
+                                                          "CALL dbms.listConfig('db.tx_log.preallocate') YIELD value RETURN value" )
+                                         .get( 0 ).get( 0 ).asString(),
+                                     "Transaction logs are still preallocated in ephemeral mode" );
+            String dataSize = container.execInContainer( "du", "-sm", "/data" ).getStdout();
+            Assertions.assertTrue( Integer.parseInt( dataSize.split( "\\s+" )[0] ) < 100,
+                                   "Ephemeral data takes more space than expected: " + dataSize );
+        }
+    }
 }
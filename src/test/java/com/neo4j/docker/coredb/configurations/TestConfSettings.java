@@ -1,5 +1,7 @@
 package com.neo4j.docker.coredb.configurations;
 
+import com.github.dockerjava.api.command.CreateContainerCmd;
+import com.github.dockerjava.api.command.InspectContainerResponse;
 import com.neo4j.docker.coredb.plugins.Neo4jPluginEnv;
 import com.neo4j.docker.utils.DatabaseIO;
 import com.neo4j.docker.utils.Neo4jVersion;
@@ -16,6 +18,8 @@ import org.junit.jupiter.api.extension.RegisterExtension;
 import org.neo4j.driver.exceptions.ClientException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.testcontainers.DockerClientFactory;
+import org.testcontainers.containers.ContainerLaunchException;
 import org.testcontainers.containers.GenericContainer;
 import org.testcontainers.containers.output.OutputFrame;
 import org.testcontainers.containers.output.Slf4jLogConsumer;
@@ -27,9 +31,12 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
+import java.time.Instant;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
 public class TestConfSettings
@@ -513,4 +520,171 @@ public class TestConfSettings
                 configurations.get(confNames.get( Setting.SECURITY_PROCEDURES_UNRESTRICTED).name),
                 "Configuration value should be *. If it's not docker-entrypoint.sh probably evaluated it as a glob expression.");
     }
+
+    @Test
+    void testManyEnvSettingsAreEachWrittenToConfOnce() throws Exception
+    {
+        Assumptions.assumeTrue( TestSettings.NEO4J_VERSION.isAtLeastVersion( Neo4jVersion.NEO4J_VERSION_500),
+                                "single pass configuration rendering only applicable to 5.0 and beyond." );
+        Path neo4jConf = dumpConfigWithExtraSettings( 500 ).getValue();
+        List<String> benchmarkLines = Files.readAllLines( neo4jConf ).stream()
+                                           .filter( line -> line.startsWith( "docker.benchmark.setting_" ) )
+                                           .toList();
+        Assertions.assertEquals( 500, benchmarkLines.size(), "every env setting should be written to neo4j.conf exactly once" );
+        Map<String, String> configurations = parseConfFile( neo4jConf.toFile() );
+        for(int i=0; i<500; i++)
+        {
+            Assertions.assertEquals( "value"+i, configurations.get( "docker.benchmark.setting_"+i ),
+                                     "env setting "+i+" not written to neo4j.conf" );
+        }
+    }
+
+    // Timings are unreliable on loaded machines, so this only runs with mvn test -P benchmark
+    @Test
+    @Tag("Benchmark")
+    void testConfigRenderingTimeStaysFlatAsEnvSettingsGrow() throws Exception
+    {
+        Assumptions.assumeTrue( TestSettings.NEO4J_VERSION.isAtLeastVersion( Neo4jVersion.NEO4J_VERSION_500),
+                                "single pass configuration rendering only applicable to 5.0 and beyond." );
+        // dump-config runs the whole configuration stage of the entrypoint but never starts a JVM,
+        // so the container run time is a good benchmark of the entrypoint's configuration overhead.
+        Duration fewSettings = dumpConfigWithExtraSettings( 1 ).getKey();
+        Duration manySettings = dumpConfigWithExtraSettings( 500 ).getKey();
+        log.info( "dump-config took {}ms with 1 env setting and {}ms with 500 env settings",
+                  fewSettings.toMillis(), manySettings.toMillis() );
+        Assertions.assertTrue( manySettings.minus( fewSettings ).compareTo( Duration.ofSeconds( 2 ) ) < 0,
+                               "Writing 500 env settings to neo4j.conf took "+manySettings.toMillis()+
+                               "ms compared to "+fewSettings.toMillis()+"ms for a single setting." );
+    }
+
+    private Map.Entry<Duration,Path> dumpConfigWithExtraSettings( int numberOfSettings ) throws Exception
+    {
+        Duration runTime;
+        Path confMount;
+        try(GenericContainer container = createContainer())
+        {
+            for(int i=0; i<numberOfSettings; i++)
+            {
+                container.withEnv( "NEO4J_docker_benchmark_setting__"+i, "value"+i );
+            }
+            confMount = temporaryFolderManager.createFolderAndMountAsVolume(container, "/conf");
+            makeContainerDumpConfig( container );
+            container.start();
+            InspectContainerResponse.ContainerState state = container.getCurrentContainerInfo().getState();
+            runTime = Duration.between( Instant.parse( state.getStartedAt() ), Instant.parse( state.getFinishedAt() ) );
+        }
+        return Map.entry( runTime, confMount.resolve( "neo4j.conf" ) );
+    }
+
+    @Test
+    void testEnvSettingWithNewlineIsRejected() throws Exception
+    {
+        Assumptions.assumeTrue( TestSettings.NEO4J_VERSION.isAtLeastVersion( Neo4jVersion.NEO4J_VERSION_500),
+                                "single pass configuration rendering only applicable to 5.0 and beyond." );
+        String logs;
+        try(GenericContainer container = createContainer())
+        {
+            container.withEnv( "NEO4J_dbms_default__database", "neo4j\nserver.memory.heap.max_size=1" );
+            temporaryFolderManager.createFolderAndMountAsVolume(container, "/conf");
+            makeContainerDumpConfig( container );
+            Assertions.assertThrows( ContainerLaunchException.class, container::start,
+                                     "a setting value with a newline should stop the container" );
+            logs = container.getLogs( OutputFrame.OutputType.STDERR );
+        }
+        Assertions.assertTrue( logs.contains( "Invalid value for dbms.default_database: configuration values cannot contain newlines or tabs." ),
+                               "Did not explain why the setting was rejected. Actual errors were:\n"+logs );
+    }
+
+    @Test
+    void testAutoMemorySizingDoesNotOverrideUserSettings() throws Exception
+    {
+        Assumptions.assumeTrue( TestSettings.NEO4J_VERSION.isAtLeastVersion( Neo4jVersion.NEO4J_VERSION_500),
+                                "automatic memory sizing only applicable to 5.0 and beyond." );
+        Path confMount;
+        String stdout;
+        try(GenericContainer container = createContainer()
+                .withEnv( "NEO4J_AUTO_MEMORY", "true" )
+                .withEnv( confNames.get( Setting.MEMORY_PAGECACHE_SIZE ).envName, "100M" )
+                .withCreateContainerCmdModifier(
+                        (Consumer<CreateContainerCmd>) cmd -> cmd.getHostConfig().withMemory( 2L * 1024 * 1024 * 1024 ) ))
+        {
+            confMount = temporaryFolderManager.createFolderAndMountAsVolume(container, "/conf");
+            makeContainerDumpConfig( container );
+            container.start();
+            stdout = container.getLogs( OutputFrame.OutputType.STDOUT );
+        }
+        Assertions.assertTrue( stdout.contains( "Automatic memory sizing: container memory limit is 2048MiB." ),
+                               "Did not detect the container memory limit\n" + stdout );
+        Map<String, String> configurations = parseConfFile( confMount.resolve( "neo4j.conf" ).toFile() );
+        Assertions.assertEquals( "100M", configurations.get( confNames.get( Setting.MEMORY_PAGECACHE_SIZE ).name ),
+                                 "Automatic memory sizing overrode the page cache size set by the user" );
+        Assertions.assertTrue( configurations.containsKey( confNames.get( Setting.MEMORY_HEAP_MAXSIZE ).name ),
+                               "Automatic memory sizing did not set the max heap size" );
+        Assertions.assertTrue( configurations.containsKey( confNames.get( Setting.MEMORY_HEAP_INITIALSIZE ).name ),
+                               "Automatic memory sizing did not set the initial heap size" );
+    }
+
+    @Test
+    void testPrebakedImageSkipsConfigurationUnlessEnvironmentChanges() throws Exception
+    {
+        Assumptions.assumeTrue( TestSettings.NEO4J_VERSION.isAtLeastVersion( Neo4jVersion.NEO4J_VERSION_500),
+                                "pre-baked images only applicable to 5.0 and beyond." );
+        Configuration pagecache = confNames.get( Setting.MEMORY_PAGECACHE_SIZE );
+        Path envFile = temporaryFolderManager.createFolder( "prebake" ).resolve( "prebake.env" );
+        Files.writeString( envFile, pagecache.envName + "=100M\n" );
+        String prebakedImage = "neo4jtest-prebaked:" + Instant.now().toEpochMilli();
+        // build the image the same way users do, so that the test covers the Dockerfile the script generates
+        Process build = new ProcessBuilder( "./build-prebaked-image.sh", TestSettings.IMAGE_ID.asCanonicalNameString(),
+                                            envFile.toString(), prebakedImage )
+                .redirectErrorStream( true )
+                .start();
+        String buildOutput = new String( build.getInputStream().readAllBytes() );
+        log.info( buildOutput );
+        Assertions.assertEquals( 0, build.waitFor(), "build-prebaked-image.sh failed\n" + buildOutput );
+        try
+        {
+            verifyPrebakedImageSkipsConfigurationUnlessEnvironmentChanges( prebakedImage, pagecache );
+        }
+        finally
+        {
+            DockerClientFactory.lazyClient().removeImageCmd( prebakedImage ).withForce( true ).exec();
+        }
+    }
+
+    private void verifyPrebakedImageSkipsConfigurationUnlessEnvironmentChanges( String prebakedImage, Configuration pagecache ) throws Exception
+    {
+        try(GenericContainer container = new GenericContainer( prebakedImage )
+                .withEnv( "NEO4J_AUTH", AUTH )
+                .withEnv( "NEO4J_ACCEPT_LICENSE_AGREEMENT", "yes" )
+                .withExposedPorts( 7474, 7687 )
+                .withLogConsumer( new Slf4jLogConsumer( log ) ))
+        {
+            container.waitingFor( WaitStrategies.waitForNeo4jReady( PASSWORD ) );
+            container.start();
+            String stdout = container.getLogs( OutputFrame.OutputType.STDOUT );
+            Assertions.assertTrue( stdout.contains( "Using the plugins and configuration pre-baked into this image." ),
+                                   "Pre-baked configuration was not used\n" + stdout );
+            String conf = container.execInContainer( "cat", "conf/neo4j.conf" ).getStdout();
+            Assertions.assertTrue( conf.contains( pagecache.name + "=100M" ),
+                                   "Pre-baked setting is missing from neo4j.conf\n" + conf );
+        }
+
+        Path confMount;
+        try(GenericContainer container = new GenericContainer( prebakedImage )
+                .withEnv( "NEO4J_AUTH", AUTH )
+                .withEnv( "NEO4J_ACCEPT_LICENSE_AGREEMENT", "yes" )
+                .withEnv( pagecache.envName, "200M" )
+                .withLogConsumer( new Slf4jLogConsumer( log ) ))
+        {
+            confMount = temporaryFolderManager.createFolderAndMountAsVolume(container, "/conf");
+            makeContainerDumpConfig( container );
+            container.start();
+            String stdout = container.getLogs( OutputFrame.OutputType.STDOUT );
+            Assertions.assertFalse( stdout.contains( "Using the plugins and configuration pre-baked into this image." ),
+                                    "Pre-baked configuration was used even though the environment changed\n" + stdout );
+        }
+        Map<String, String> configurations = parseConfFile( confMount.resolve( "neo4j.conf" ).toFile() );
+        Assertions.assertEquals( "200M", configurations.get( pagecache.name ),
+                                 "Changed environment was not applied over the pre-baked configuration" );
+    }
 }
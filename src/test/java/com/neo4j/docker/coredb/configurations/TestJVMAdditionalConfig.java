@@ -95,6 +95,44 @@ public class TestJVMAdditionalConfig
         }
     }
 
+    @Test
+    void testJvmProfileReplacesDefaultGarbageCollector() throws Exception
+    {
+        Assumptions.assumeTrue( TestSettings.NEO4J_VERSION.isAtLeastVersion( Neo4jVersion.NEO4J_VERSION_500 ),
+                                "JVM profiles not applicable before 5.0.0");
+        try( GenericContainer container = createContainer())
+        {
+            container.withEnv( "NEO4J_JVM_PROFILE", "small-footprint" );
+            SetContainerUser.nonRootUser( container );
+            container.start();
+            DatabaseIO dbio = new DatabaseIO( container );
+            String actualConfValue = dbio.getConfigurationSettingAsString( "neo4j", PASSWORD, JVM_ADDITIONAL_CONFIG );
+            Assertions.assertTrue( actualConfValue.contains( "-XX:+UseSerialGC" ), actualConfValue );
+            Assertions.assertFalse( actualConfValue.contains( DEFAULT_JVM_CONF ),
+                                    "Default garbage collector was not replaced by the JVM profile: " + actualConfValue );
+        }
+    }
+
+    @Test
+    void testJvmProfileKeepsGarbageCollectorSetByUser() throws Exception
+    {
+        Assumptions.assumeTrue( TestSettings.NEO4J_VERSION.isAtLeastVersion( Neo4jVersion.NEO4J_VERSION_500 ),
+                                "JVM profiles not applicable before 5.0.0");
+        try( GenericContainer container = createContainer())
+        {
+            container.withEnv( "NEO4J_JVM_PROFILE", "low-latency" )
+                     .withEnv( JVM_ADDITIONAL_CONFIG.envName, DEFAULT_JVM_CONF );
+            SetContainerUser.nonRootUser( container );
+            container.start();
+            DatabaseIO dbio = new DatabaseIO( container );
+            String actualConfValue = dbio.getConfigurationSettingAsString( "neo4j", PASSWORD, JVM_ADDITIONAL_CONFIG );
+            Assertions.assertTrue( actualConfValue.contains( DEFAULT_JVM_CONF ), actualConfValue );
+            Assertions.assertTrue( actualConfValue.contains( "-XX:+AlwaysPreTouch" ), actualConfValue );
+            Assertions.assertFalse( actualConfValue.contains( "-XX:+UseZGC" ),
+                                    "JVM profile overrode the garbage collector set by the user: " + actualConfValue );
+        }
+    }
+
     @Test
     void testSpecialCharInJvmAdditional_space_conf() throws Exception
     {
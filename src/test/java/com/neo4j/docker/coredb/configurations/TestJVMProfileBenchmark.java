@@ -0,0 +1,109 @@
+package com.neo4j.docker.coredb.configurations;
+
+import com.neo4j.docker.utils.DatabaseIO;
+import com.neo4j.docker.utils.Neo4jVersion;
+import com.neo4j.docker.utils.TestSettings;
+import com.neo4j.docker.utils.WaitStrategies;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.neo4j.driver.AuthTokens;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.GraphDatabase;
+import org.neo4j.driver.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.containers.output.Slf4jLogConsumer;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+
+// Compares the NEO4J_JVM_PROFILE options under the same Cypher load.
+// These take a while and the results are only logged, so they only run with mvn test -P benchmark
+@Tag("Benchmark")
+public class TestJVMProfileBenchmark
+{
+    private final Logger log = LoggerFactory.getLogger( TestJVMProfileBenchmark.class );
+    private static final String PASSWORD = "SuperSecretPassword";
+    private static final String AUTH = "neo4j/"+PASSWORD;
+    private static final int NODES = 200_000;
+    private static final int BATCH_SIZE = 10_000;
+    private static final int READ_QUERIES = 2_000;
+
+    @BeforeAll
+    static void beforeAll()
+    {
+        Assumptions.assumeTrue( TestSettings.NEO4J_VERSION.isAtLeastVersion( Neo4jVersion.NEO4J_VERSION_500 ),
+                                "JVM profiles not applicable before 5.0.0");
+    }
+
+    private GenericContainer createContainer( String jvmProfile )
+    {
+        GenericContainer container = new GenericContainer(TestSettings.IMAGE_ID)
+                .withEnv("NEO4J_AUTH", AUTH)
+                .withEnv("NEO4J_ACCEPT_LICENSE_AGREEMENT", "yes")
+                .withEnv("NEO4J_server_memory_heap_max__size", "1G")
+                .withEnv("NEO4J_server_memory_heap_initial__size", "1G")
+                .withExposedPorts(7474, 7687)
+                .withLogConsumer(new Slf4jLogConsumer( log))
+                .waitingFor(WaitStrategies.waitForNeo4jReady(PASSWORD));
+        if( !jvmProfile.equals( "default" ) )
+        {
+            container.withEnv( "NEO4J_JVM_PROFILE", jvmProfile );
+        }
+        return container;
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @ValueSource(strings = {"default", "throughput", "low-latency", "small-footprint"})
+    void benchmarkJvmProfile( String jvmProfile ) throws Exception
+    {
+        try( GenericContainer container = createContainer( jvmProfile ))
+        {
+            container.start();
+            String boltUri = "bolt://"+container.getHost()+":"+container.getMappedPort( 7687 );
+            Duration writeTime;
+            long[] readLatencies = new long[READ_QUERIES];
+            try( Driver driver = GraphDatabase.driver( boltUri, AuthTokens.basic( "neo4j", PASSWORD ) );
+                 Session session = driver.session() )
+            {
+                session.run( "CREATE INDEX person_id IF NOT EXISTS FOR (p:Person) ON (p.id)" ).consume();
+                long start = System.nanoTime();
+                for( int batch = 0; batch < NODES; batch += BATCH_SIZE )
+                {
+                    session.run( "UNWIND range($from, $to) AS i " +
+                                 "CREATE (p:Person {id: i, name: 'person' + i}) " +
+                                 "WITH p, i WHERE i > 0 " +
+                                 "MATCH (q:Person {id: i - 1}) CREATE (p)-[:KNOWS]->(q)",
+                                 Map.of( "from", batch, "to", batch + BATCH_SIZE - 1 ) ).consume();
+                }
+                writeTime = Duration.ofNanos( System.nanoTime() - start );
+
+                for( int i = 0; i < READ_QUERIES; i++ )
+                {
+                    start = System.nanoTime();
+                    session.run( "MATCH (p:Person {id: $id})-[:KNOWS*1..3]->(q) RETURN count(q)",
+                                 Map.of( "id", (i * 7919) % NODES ) ).consume();
+                    readLatencies[i] = System.nanoTime() - start;
+                }
+                long count = session.run( "MATCH (p:Person) RETURN count(p)" ).single().get( 0 ).asLong();
+                Assertions.assertEquals( NODES, count, "Benchmark load did not create all nodes" );
+            }
+            Arrays.sort( readLatencies );
+            String rss = container.execInContainer( "sh", "-c", "ps -o rss= -C java" ).getStdout().trim();
+            String jvmAdditional = new DatabaseIO( container ).getConfigurationSettingAsString(
+                    "neo4j", PASSWORD, Configuration.getConfigurationNameMap().get( Setting.JVM_ADDITIONAL ) );
+            log.info( "JVM profile {}: wrote {} nodes in {}ms, read p50 {}us p99 {}us max {}us, java RSS {}KiB\n{}",
+                      jvmProfile, NODES, writeTime.toMillis(),
+                      readLatencies[READ_QUERIES / 2] / 1000,
+                      readLatencies[READ_QUERIES * 99 / 100] / 1000,
+                      readLatencies[READ_QUERIES - 1] / 1000,
+                      rss, jvmAdditional );
+        }
+    }
+}
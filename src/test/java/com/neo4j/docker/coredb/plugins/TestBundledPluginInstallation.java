@@ -269,4 +269,24 @@ public class TestBundledPluginInstallation
                                    "HTTP response from browser did not contain expected information.\n"+r.getStdout());
         }
     }
+
+    @Test
+    public void testBundledPluginIsNotCopiedAgainOnRestart() throws Exception
+    {
+        Assumptions.assumeTrue( APOC.shouldBePresentInImage(), "test only applies when the apoc plugin is present" );
+
+        Path pluginsMount = temporaryFolderManager.createFolder( "plugins" );
+        for ( int restart = 0; restart < 2; restart++ )
+        {
+            try ( GenericContainer container = createContainerWithBundledPlugin( APOC ) )
+            {
+                temporaryFolderManager.mountHostFolderAsVolume( container, pluginsMount, "/plugins" );
+                container.start();
+                String logs = container.getLogs( OutputFrame.OutputType.STDOUT );
+                Assertions.assertEquals( restart > 0,
+                                         logs.contains( "is already installed at /plugins/apoc.jar, avoided copying" ),
+                                         "The bundled plugin should only be copied on the first start\n" + logs );
+            }
+        }
+    }
 }
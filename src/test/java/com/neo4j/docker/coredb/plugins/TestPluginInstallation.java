@@ -26,6 +26,7 @@ import org.testcontainers.containers.Network;
 import org.testcontainers.containers.output.OutputFrame;
 import org.testcontainers.containers.output.Slf4jLogConsumer;
 
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.util.List;
@@ -267,4 +268,58 @@ public class TestPluginInstallation
             stubPluginHelper.verifyStubPluginLoaded(databaseIO, DB_USER, DB_PASSWORD);
         }
     }
+
+    @Test
+    void testDownloadedPluginIsReusedFromCacheOnRestart() throws Exception
+    {
+        Assumptions.assumeTrue( NEO4J_VERSION.isAtLeastVersion( Neo4jVersion.NEO4J_VERSION_500 ),
+                                "Plugin cache was added in 5.0.0" );
+        Path pluginsFolder = temporaryFolderManager.createFolder( "plugins" );
+        stubPluginHelper.createStubPluginForVersion( pluginsFolder, NEO4J_VERSION );
+        for ( int restart = 0; restart < 2; restart++ )
+        {
+            try ( GenericContainer container = createContainerWithTestingPlugin( false ) )
+            {
+                temporaryFolderManager.mountHostFolderAsVolume( container, pluginsFolder, "/plugins" );
+                container.start();
+                String stdout = container.getLogs( OutputFrame.OutputType.STDOUT );
+                Assertions.assertEquals( restart > 0, stdout.contains( "from the plugin cache" ),
+                                         "The plugin should only be downloaded on the first start\n" + stdout );
+                DatabaseIO databaseIO = new DatabaseIO( container );
+                stubPluginHelper.verifyStubPluginLoaded( databaseIO, DB_USER, DB_PASSWORD );
+            }
+        }
+    }
+
+    @Test
+    void testLockedPluginIsNotResolvedAgainUnlessRefreshed() throws Exception
+    {
+        Assumptions.assumeTrue( NEO4J_VERSION.isAtLeastVersion( Neo4jVersion.NEO4J_VERSION_500 ),
+                                "Plugin lockfile was added in 5.0.0" );
+        Path pluginsFolder = temporaryFolderManager.createFolder( "plugins" );
+        stubPluginHelper.createStubPluginForVersion( pluginsFolder, NEO4J_VERSION );
+        // start 0 resolves the plugin, start 1 uses the lockfile, start 2 is forced to resolve the plugin again
+        for ( int restart = 0; restart < 3; restart++ )
+        {
+            try ( GenericContainer container = createContainerWithTestingPlugin( false ) )
+            {
+                temporaryFolderManager.mountHostFolderAsVolume( container, pluginsFolder, "/plugins" );
+                if ( restart == 2 )
+                {
+                    container.withEnv( "NEO4J_PLUGINS_REFRESH", "true" );
+                }
+                container.start();
+                String stdout = container.getLogs( OutputFrame.OutputType.STDOUT );
+                Assertions.assertEquals( restart != 1, stdout.contains( "Fetching versions.json for Plugin" ),
+                                         "Plugin should only be resolved when it is not locked, or a refresh is forced\n" + stdout );
+                Assertions.assertEquals( restart == 1, stdout.contains( "as locked in /plugins/neo4j-plugins.lock" ),
+                                         "Plugin should be installed from the lockfile on restart\n" + stdout );
+                DatabaseIO databaseIO = new DatabaseIO( container );
+                stubPluginHelper.verifyStubPluginLoaded( databaseIO, DB_USER, DB_PASSWORD );
+            }
+            String lockfile = Files.readString( pluginsFolder.resolve( "neo4j-plugins.lock" ) );
+            Assertions.assertTrue( lockfile.contains( "\n" + StubPluginHelper.PLUGIN_ENV_NAME + "\t" ),
+                                   "The resolved plugin was not written to the lockfile\n" + lockfile );
+        }
+    }
 }
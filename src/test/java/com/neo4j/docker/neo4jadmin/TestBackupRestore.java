@@ -17,6 +17,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.testcontainers.containers.GenericContainer;
 import org.testcontainers.containers.output.Slf4jLogConsumer;
+import org.testcontainers.containers.startupcheck.IsRunningStartupCheckStrategy;
 import org.testcontainers.containers.wait.strategy.LogMessageWaitStrategy;
 import org.testcontainers.containers.wait.strategy.Wait;
 
@@ -26,6 +27,8 @@ import java.nio.file.Path;
 import java.time.Duration;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class TestBackupRestore
 {
@@ -174,4 +177,249 @@ public class TestBackupRestore
             } //adminRestore out of scope here
         } // neo4j container goes out of scope here
     }
+
+    @Test
+    void shouldBackupAllDatabasesInParallel() throws Exception
+    {
+        final String dbUser = "neo4j";
+        final String password = "secretpassword";
+        final List<String> databases = List.of( "neo4j", "system", "extra1", "extra2", "extra3" );
+
+        try(GenericContainer neo4j = createDBContainer( true, password ))
+        {
+            neo4j.start();
+            DatabaseIO dbio = new DatabaseIO( neo4j );
+            dbio.putInitialDataIntoContainer( dbUser, password );
+            for(String database : databases.subList( 2, databases.size() ))
+            {
+                dbio.runCypherQuery( dbUser, password, "CREATE DATABASE " + database + " WAIT", "system" );
+            }
+
+            Path backupDir;
+            try(GenericContainer adminBackup = createAdminContainer( true ))
+            {
+                adminBackup.withNetworkMode( "host" )
+                           .withEnv( "NEO4J_BACKUP_AUTH", dbUser + "/" + password )
+                           .withEnv( "NEO4J_BACKUP_BOLT_ADDRESS", neo4j.getHost() + ":" + neo4j.getMappedPort( 7687 ) )
+                           .withEnv( "NEO4J_BACKUP_PARALLELISM", "3" )
+                           .waitingFor( new LogMessageWaitStrategy().withRegEx( "^All 5 database backups succeeded.*" ) )
+                           .withCommand( "backup-all",
+                                         "--to-path=/backups",
+                                         "--from=" + neo4j.getHost() + ":" + neo4j.getMappedPort( 6362 ) );
+                backupDir = temporaryFolderManager.createFolderAndMountAsVolume(adminBackup, "/backups");
+                adminBackup.start();
+
+                String logs = adminBackup.getLogs();
+                for(String database : databases)
+                {
+                    Assertions.assertTrue( logs.contains( "[" + database + "] " ),
+                                           "backup output of " + database + " is not prefixed with the database name" );
+                    Assertions.assertTrue( logs.matches( "(?s).*\\n\\s+" + database + "\\s+succeeded.*" ),
+                                           "summary does not show that " + database + " was backed up" );
+                }
+            }
+
+            for(String database : databases)
+            {
+                Assertions.assertEquals( 1, Files.list( backupDir )
+                                                 .filter( p -> p.toFile().getName().startsWith( database + "-" ) )
+                                                 .count(),
+                                         "No backup file was created for " + database );
+            }
+        }
+    }
+
+    @Test
+    void shouldBackupOnScheduleWithDaemon() throws Exception
+    {
+        final String dbUser = "neo4j";
+        final String password = "secretpassword";
+
+        try(GenericContainer neo4j = createDBContainer( true, password ))
+        {
+            neo4j.start();
+            DatabaseIO dbio = new DatabaseIO( neo4j );
+            dbio.putInitialDataIntoContainer( dbUser, password );
+
+            try(GenericContainer adminDaemon = createAdminContainer( true ))
+            {
+                adminDaemon.withNetworkMode( "host" )
+                           .withEnv( "NEO4J_BACKUP_AUTH", dbUser + "/" + password )
+                           .withEnv( "NEO4J_BACKUP_BOLT_ADDRESS", neo4j.getHost() + ":" + neo4j.getMappedPort( 7687 ) )
+                           .withEnv( "NEO4J_BACKUP_INTERVAL", "5s" )
+                           .withStartupCheckStrategy( new IsRunningStartupCheckStrategy() )
+                           .waitingFor( Wait.forLogMessage( "^Next backup at.*", 2 )
+                                            .withStartupTimeout( Duration.ofSeconds( 180 ) ) )
+                           .withCommand( "backup-daemon",
+                                         "--to-path=/backups",
+                                         "--from=" + neo4j.getHost() + ":" + neo4j.getMappedPort( 6362 ) );
+                Path backupDir = temporaryFolderManager.createFolderAndMountAsVolume(adminDaemon, "/backups");
+                adminDaemon.start();
+
+                String logs = adminDaemon.getLogs();
+                Assertions.assertTrue( logs.contains( "Starting full backup." ), "first backup should be a full backup" );
+                Assertions.assertTrue( logs.contains( "Starting differential backup." ),
+                                       "backups after the first one should be differential" );
+                Assertions.assertTrue( Files.list( backupDir )
+                                            .filter( p -> p.toFile().getName().startsWith( "neo4j-" ) )
+                                            .count() >= 2,
+                                       "Expected a full and a differential backup of neo4j" );
+                String metrics = Files.readString( backupDir.resolve( "backup-metrics.prom" ) );
+                Assertions.assertTrue( metrics.contains( "neo4j_backup_last_success{database=\"neo4j\"} 1" ),
+                                       "metrics should show the last backup of neo4j succeeded:\n" + metrics );
+                Assertions.assertTrue( metrics.contains( "neo4j_backup_lag_seconds{database=\"neo4j\"}" ),
+                                       "metrics should show the backup lag of neo4j:\n" + metrics );
+
+                // the daemon gets the SIGTERM of docker stop, so it stops straight away instead of being killed
+                long stopStart = System.nanoTime();
+                adminDaemon.getDockerClient().stopContainerCmd( adminDaemon.getContainerId() ).withTimeout( 30 ).exec();
+                Duration stopTime = Duration.ofNanos( System.nanoTime() - stopStart );
+                Long exitCode = adminDaemon.getDockerClient().inspectContainerCmd( adminDaemon.getContainerId() )
+                                           .exec().getState().getExitCodeLong();
+                Assertions.assertEquals( 0L, exitCode, "backup daemon did not exit cleanly when stopped" );
+                Assertions.assertTrue( stopTime.compareTo( Duration.ofSeconds( 10 ) ) < 0,
+                                       "backup daemon took " + stopTime.toMillis() + "ms to stop" );
+                Assertions.assertTrue( adminDaemon.getLogs().contains( "Stopping backup daemon." ),
+                                       "backup daemon did not handle the stop signal" );
+            }
+        }
+    }
+
+    @Test
+    void shouldRestoreFromAggregatedBackupChain() throws Exception
+    {
+        final String dbUser = "neo4j";
+        final String password = "secretpassword";
+
+        try(GenericContainer neo4j = createDBContainer( true, password ))
+        {
+            Path dataDir = temporaryFolderManager.createFolderAndMountAsVolume(neo4j, "/data");
+            Path chainDir = temporaryFolderManager.createFolder( "chain" );
+            Path aggregatedDir = temporaryFolderManager.createFolder( "aggregated" );
+            neo4j.start();
+            DatabaseIO dbio = new DatabaseIO( neo4j );
+            String neoDBAddress = neo4j.getHost() + ":" + neo4j.getMappedPort( 6362 );
+
+            // make the same chain of a full backup and two differential backups in both folders
+            dbio.putInitialDataIntoContainer( dbUser, password );
+            backupInto( chainDir, neoDBAddress );
+            backupInto( aggregatedDir, neoDBAddress );
+            dbio.putMoreDataIntoContainer( dbUser, password );
+            for( int i = 0; i < 2; i++ )
+            {
+                backupInto( chainDir, neoDBAddress );
+                backupInto( aggregatedDir, neoDBAddress );
+            }
+
+            try(GenericContainer adminAggregate = createAdminContainer( true ))
+            {
+                adminAggregate.withCommand( "neo4j-admin", "database", "aggregate-backup", "--from-path=/backups", "neo4j" );
+                temporaryFolderManager.mountHostFolderAsVolume( adminAggregate, aggregatedDir, "/backups" );
+                adminAggregate.start();
+            }
+            assertOneBackupPerDatabase( aggregatedDir );
+
+            Duration chainRestore = restoreFrom( dbio, chainDir, dataDir, dbUser, password );
+            Duration aggregatedRestore = restoreFrom( dbio, aggregatedDir, dataDir, dbUser, password );
+            log.info( "Restore took {}ms from a backup chain and {}ms from an aggregated backup.",
+                      chainRestore.toMillis(), aggregatedRestore.toMillis() );
+        }
+    }
+
+    @Test
+    void shouldAggregateBackupChainWithDaemon() throws Exception
+    {
+        final String dbUser = "neo4j";
+        final String password = "secretpassword";
+
+        try(GenericContainer neo4j = createDBContainer( true, password ))
+        {
+            Path dataDir = temporaryFolderManager.createFolderAndMountAsVolume(neo4j, "/data");
+            neo4j.start();
+            DatabaseIO dbio = new DatabaseIO( neo4j );
+            dbio.putInitialDataIntoContainer( dbUser, password );
+
+            Path backupDir;
+            try(GenericContainer adminDaemon = createAdminContainer( true ))
+            {
+                // a full backup, then the chain is aggregated after the second differential backup
+                adminDaemon.withNetworkMode( "host" )
+                           .withEnv( "NEO4J_BACKUP_AUTH", dbUser + "/" + password )
+                           .withEnv( "NEO4J_BACKUP_BOLT_ADDRESS", neo4j.getHost() + ":" + neo4j.getMappedPort( 7687 ) )
+                           .withEnv( "NEO4J_BACKUP_INTERVAL", "20s" )
+                           .withEnv( "NEO4J_BACKUP_AGGREGATE", "true" )
+                           .withEnv( "NEO4J_BACKUP_AGGREGATE_EVERY", "2" )
+                           .withStartupCheckStrategy( new IsRunningStartupCheckStrategy() )
+                           .waitingFor( Wait.forLogMessage( "^Starting full backup.*", 1 )
+                                            .withStartupTimeout( Duration.ofSeconds( 60 ) ) )
+                           .withCommand( "backup-daemon",
+                                         "--to-path=/backups",
+                                         "--from=" + neo4j.getHost() + ":" + neo4j.getMappedPort( 6362 ) );
+                backupDir = temporaryFolderManager.createFolderAndMountAsVolume(adminDaemon, "/backups");
+                adminDaemon.start();
+                // only in the differential backups
+                dbio.putMoreDataIntoContainer( dbUser, password );
+                Wait.forLogMessage( "^Aggregated the backup chain of neo4j.*", 1 )
+                    .withStartupTimeout( Duration.ofSeconds( 180 ) )
+                    .waitUntilReady( adminDaemon );
+                adminDaemon.getDockerClient().stopContainerCmd( adminDaemon.getContainerId() ).withTimeout( 30 ).exec();
+                String logs = adminDaemon.getLogs();
+                Assertions.assertEquals( 1, logs.split( "Aggregated the backup chain of neo4j", -1 ).length - 1,
+                                         "the chain should only be aggregated every second differential backup:\n" + logs );
+            }
+            assertOneBackupPerDatabase( backupDir );
+            restoreFrom( dbio, backupDir, dataDir, dbUser, password );
+        }
+    }
+
+    private void assertOneBackupPerDatabase( Path backupDir ) throws Exception
+    {
+        Map<String,Long> backupsPerDatabase;
+        try(Stream<Path> files = Files.list( backupDir ))
+        {
+            backupsPerDatabase = files.map( p -> p.getFileName().toString() )
+                                      .filter( name -> name.matches( ".+-\\d{4}-\\d{2}-\\d{2}T.*\\.backup" ) )
+                                      .collect( Collectors.groupingBy( name -> name.replaceFirst( "-\\d{4}-\\d{2}-\\d{2}T.*", "" ),
+                                                                       Collectors.counting() ) );
+        }
+        Assertions.assertTrue( backupsPerDatabase.containsKey( "neo4j" ), "There is no backup of neo4j in " + backupDir );
+        backupsPerDatabase.forEach( ( database, backups ) ->
+                Assertions.assertEquals( 1L, backups,
+                                         "Expected the backup chain of " + database + " to be aggregated into a single backup" ) );
+    }
+
+    private void backupInto( Path backupDir, String neoDBAddress ) throws Exception
+    {
+        try(GenericContainer adminBackup = createAdminContainer( true ))
+        {
+            adminBackup.withNetworkMode( "host" )
+                       .waitingFor( new LogMessageWaitStrategy().withRegEx( "^Backup command completed.*" ) )
+                       .withCommand( "neo4j-admin", "database", "backup", "--to-path=/backups", "--from=" + neoDBAddress, "neo4j" );
+            temporaryFolderManager.mountHostFolderAsVolume( adminBackup, backupDir, "/backups" );
+            adminBackup.start();
+        }
+    }
+
+    private Duration restoreFrom( DatabaseIO dbio, Path backupDir, Path dataDir, String dbUser, String password ) throws Exception
+    {
+        dbio.runCypherQuery( dbUser, password, "STOP DATABASE neo4j", "system" );
+        long start;
+        long end;
+        try(GenericContainer adminRestore = createAdminContainer( true ))
+        {
+            adminRestore.waitingFor( Wait.forLogMessage( ".*Restore of database .* completed successfully.*", 1 )
+                                         .withStartupTimeout( Duration.ofSeconds( 180 ) ) )
+                        .withCommand( "neo4j-admin", "database", "restore", "--overwrite-destination=true",
+                                      "--from-path=/backups", "neo4j" );
+            temporaryFolderManager.mountHostFolderAsVolume( adminRestore, backupDir, "/backups" );
+            temporaryFolderManager.mountHostFolderAsVolume( adminRestore, dataDir, "/data" );
+            start = System.nanoTime();
+            adminRestore.start();
+            end = System.nanoTime();
+        }
+        dbio.runCypherQuery( dbUser, password, "START DATABASE neo4j WAIT", "system" );
+        // the differential backups have to be applied for the extra data to be there
+        dbio.verifyMoreDataIntoContainer( dbUser, password, true );
+        return Duration.ofNanos( end - start );
+    }
 }
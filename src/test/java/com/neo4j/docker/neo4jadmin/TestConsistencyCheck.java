@@ -0,0 +1,135 @@
+package com.neo4j.docker.neo4jadmin;
+
+import com.github.dockerjava.api.command.CreateContainerCmd;
+import com.neo4j.docker.utils.DatabaseIO;
+import com.neo4j.docker.utils.Neo4jVersion;
+import com.neo4j.docker.utils.TemporaryFolderManager;
+import com.neo4j.docker.utils.TestSettings;
+import com.neo4j.docker.utils.WaitStrategies;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.containers.output.Slf4jLogConsumer;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.function.Consumer;
+
+public class TestConsistencyCheck
+{
+    private static final Logger log = LoggerFactory.getLogger( TestConsistencyCheck.class );
+    private static final String PASSWORD = "verysecretpassword";
+    @RegisterExtension
+    public static TemporaryFolderManager temporaryFolderManager = new TemporaryFolderManager();
+
+    @BeforeAll
+    static void beforeAll()
+    {
+        Assumptions.assumeTrue( TestSettings.NEO4J_VERSION.isAtLeastVersion( Neo4jVersion.NEO4J_VERSION_500 ),
+                                "These tests only apply to neo4j-admin images of 5.0 and greater");
+    }
+
+    private GenericContainer createDBContainer()
+    {
+        GenericContainer container = new GenericContainer( TestSettings.IMAGE_ID );
+        container.withEnv( "NEO4J_AUTH", "neo4j/"+PASSWORD )
+                 .withEnv( "NEO4J_ACCEPT_LICENSE_AGREEMENT", "yes" )
+                 .withExposedPorts( 7474, 7687 )
+                 .withLogConsumer( new Slf4jLogConsumer( log ) )
+                 .waitingFor( WaitStrategies.waitForNeo4jReady( PASSWORD ) );
+        return container;
+    }
+
+    private Path createDataWithDatabases() throws Exception
+    {
+        Path dataDir;
+        try(GenericContainer container = createDBContainer())
+        {
+            dataDir = temporaryFolderManager.createFolderAndMountAsVolume( container, "/data" );
+            container.start();
+            DatabaseIO dbio = new DatabaseIO( container );
+            dbio.putInitialDataIntoContainer( "neo4j", PASSWORD );
+            container.getDockerClient().stopContainerCmd( container.getContainerId() ).withTimeout( 30 ).exec();
+        }
+        return dataDir;
+    }
+
+    @Test
+    void shouldCheckAllDatabasesWithinContainerLimits() throws Exception
+    {
+        Path dataDir = createDataWithDatabases();
+
+        try(GenericContainer admin = new GenericContainer( TestSettings.ADMIN_IMAGE_ID ))
+        {
+            admin.withEnv( "NEO4J_ACCEPT_LICENSE_AGREEMENT", "yes" )
+                 .withLogConsumer( new Slf4jLogConsumer( log ) )
+                 .withCreateContainerCmdModifier(
+                         (Consumer<CreateContainerCmd>) cmd -> cmd.getHostConfig()
+                                                                  .withMemory( 2L * 1024 * 1024 * 1024 )
+                                                                  .withNanoCPUs( 2_000_000_000L ) )
+                 .withCommand( "check-all" );
+            WaitStrategies.waitUntilContainerFinished( admin, Duration.ofSeconds( 180 ) );
+            temporaryFolderManager.mountHostFolderAsVolume( admin, dataDir, "/data" );
+            admin.start();
+
+            String logs = admin.getLogs();
+            Assertions.assertTrue( logs.contains( "1 at a time, with 2 CPUs and 2.0GiB of memory" ),
+                                   "check-all did not size itself from the container limits:\n" + logs );
+            // one check for every 2 CPUs gets 90% of 2GiB, with a quarter of it for heap and half off heap
+            Assertions.assertTrue( logs.contains( "Each check runs with 460m heap and --threads=2 --max-off-heap-memory=921m" ),
+                                   "check-all did not give each check its share of the container:\n" + logs );
+            Assertions.assertTrue( logs.contains( "[neo4j] " ) && logs.contains( "[system] " ),
+                                   "check output is not prefixed with the database name" );
+            Assertions.assertTrue( logs.matches( "(?s).*\\n\\s+neo4j\\s+consistent\\s+\\d+ms.*/s.*" ),
+                                   "summary does not show the throughput of the neo4j check:\n" + logs );
+            Assertions.assertTrue( logs.contains( "All 2 databases are consistent." ), "Not all databases were consistent" );
+        }
+    }
+
+    @Test
+    void shouldCompactDatabaseAndKeepItsData() throws Exception
+    {
+        Assumptions.assumeTrue( TestSettings.EDITION == TestSettings.Edition.ENTERPRISE,
+                                "neo4j-admin database copy is only available in Neo4j Enterprise" );
+        Path dataDir;
+        // leave behind the space of lots of deleted nodes
+        try(GenericContainer container = createDBContainer())
+        {
+            dataDir = temporaryFolderManager.createFolderAndMountAsVolume( container, "/data" );
+            container.start();
+            DatabaseIO dbio = new DatabaseIO( container );
+            dbio.putInitialDataIntoContainer( "neo4j", PASSWORD );
+            dbio.runCypherQuery( "neo4j", PASSWORD, "UNWIND range(1, 100000) AS i CREATE (:Deleted {padding: 'deleted node ' + i})" );
+            dbio.runCypherQuery( "neo4j", PASSWORD, "MATCH (n:Deleted) DELETE n" );
+            container.getDockerClient().stopContainerCmd( container.getContainerId() ).withTimeout( 30 ).exec();
+        }
+
+        try(GenericContainer admin = new GenericContainer( TestSettings.ADMIN_IMAGE_ID ))
+        {
+            admin.withEnv( "NEO4J_ACCEPT_LICENSE_AGREEMENT", "yes" )
+                 .withLogConsumer( new Slf4jLogConsumer( log ) )
+                 .withCommand( "compact", "neo4j" );
+            WaitStrategies.waitUntilContainerFinished( admin, Duration.ofSeconds( 180 ) );
+            temporaryFolderManager.mountHostFolderAsVolume( admin, dataDir, "/data" );
+            admin.start();
+
+            String logs = admin.getLogs();
+            Assertions.assertTrue( logs.contains( "All 1 databases are consistent." ), "the copy was not checked:\n" + logs );
+            Assertions.assertTrue( logs.contains( "Compacted neo4j from " ), "neo4j was not compacted:\n" + logs );
+        }
+
+        // the compacted database is used in place of the original
+        try(GenericContainer container = createDBContainer())
+        {
+            temporaryFolderManager.mountHostFolderAsVolume( container, dataDir, "/data" );
+            container.start();
+            DatabaseIO dbio = new DatabaseIO( container );
+            dbio.verifyInitialDataInContainer( "neo4j", PASSWORD );
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.neo4j.docker.neo4jadmin;
 
+import com.github.dockerjava.api.command.CreateContainerCmd;
 import com.neo4j.docker.utils.DatabaseIO;
 import com.neo4j.docker.utils.Neo4jVersion;
 import com.neo4j.docker.utils.SetContainerUser;
@@ -20,6 +21,7 @@ import org.testcontainers.containers.wait.strategy.LogMessageWaitStrategy;
 
 import java.nio.file.Path;
 import java.time.Duration;
+import java.util.function.Consumer;
 
 public class TestDumpLoad
 {
@@ -95,6 +97,18 @@ public class TestDumpLoad
         shouldCreateDumpAndLoadDump( false, "verysecretpassword" );
     }
 
+    @Test
+    void shouldStreamDumpAndLoad_defaultUser() throws Exception
+    {
+        shouldStreamDumpAndLoadDump( true );
+    }
+
+    @Test
+    void shouldStreamDumpAndLoad_nonDefaultUser() throws Exception
+    {
+        shouldStreamDumpAndLoadDump( false );
+    }
+
     private void shouldCreateDumpAndLoadDump( boolean asDefaultUser, String password ) throws Exception
     {
         Path firstDataDir;
@@ -140,4 +154,58 @@ public class TestDumpLoad
             dbio.verifyInitialDataInContainer( "neo4j", password );
         }
     }
+
+    private void shouldStreamDumpAndLoadDump( boolean asDefaultUser ) throws Exception
+    {
+        String password = "verysecretpassword";
+        Path firstDataDir;
+        Path secondDataDir;
+        Path backupDir;
+
+        // start a database and populate it
+        try(GenericContainer container = createDBContainer( asDefaultUser, password ))
+        {
+            firstDataDir = temporaryFolderManager.createNamedFolderAndMountAsVolume(container,"data1", "/data");
+            container.start();
+            DatabaseIO dbio = new DatabaseIO( container );
+            dbio.putInitialDataIntoContainer( "neo4j", password );
+            container.getDockerClient().stopContainerCmd( container.getContainerId() ).withTimeout(30).exec();
+        }
+
+        // stream the dump out of the admin container. Testcontainers cannot pipe between containers,
+        // so the entrypoint's stdout is redirected to a file on a mounted folder instead.
+        // Debugging is enabled so that any entrypoint output on stdout would corrupt the dump.
+        try(GenericContainer admin = createAdminContainer( asDefaultUser ))
+        {
+            temporaryFolderManager.mountHostFolderAsVolume( admin, firstDataDir, "/data" );
+            backupDir = temporaryFolderManager.createFolderAndMountAsVolume(admin, "/backups");
+            admin.withEnv( "NEO4J_DEBUG", "yes" )
+                 .withCreateContainerCmdModifier( (Consumer<CreateContainerCmd>) cmd -> cmd.withEntrypoint(
+                         "bash", "-c", "/startup/docker-entrypoint.sh neo4j-admin database dump neo4j --to-stdout > /backups/streamed.dump" ) );
+            WaitStrategies.waitUntilContainerFinished( admin, Duration.ofSeconds( 90 ) );
+            admin.start();
+        }
+        Assertions.assertTrue( backupDir.resolve( "streamed.dump" ).toFile().length() > 0, "dump was not streamed to stdout" );
+
+        // stream the dump into a new database through stdin
+        try(GenericContainer admin = createAdminContainer( asDefaultUser ))
+        {
+            secondDataDir = temporaryFolderManager.createNamedFolderAndMountAsVolume(admin, "data2", "/data");
+            temporaryFolderManager.mountHostFolderAsVolume( admin, backupDir, "/backups" );
+            admin.withEnv( "NEO4J_DEBUG", "yes" )
+                 .withCreateContainerCmdModifier( (Consumer<CreateContainerCmd>) cmd -> cmd.withEntrypoint(
+                         "bash", "-c", "/startup/docker-entrypoint.sh neo4j-admin database load neo4j --from-stdin < /backups/streamed.dump" ) );
+            WaitStrategies.waitUntilContainerFinished( admin, Duration.ofSeconds( 90 ) );
+            admin.start();
+        }
+
+        // verify data in 2nd data directory by starting a database and verifying data we populated earlier
+        try(GenericContainer container = createDBContainer( asDefaultUser, password ))
+        {
+            temporaryFolderManager.mountHostFolderAsVolume( container, secondDataDir, "/data" );
+            container.start();
+            DatabaseIO dbio = new DatabaseIO( container );
+            dbio.verifyInitialDataInContainer( "neo4j", password );
+        }
+    }
 }